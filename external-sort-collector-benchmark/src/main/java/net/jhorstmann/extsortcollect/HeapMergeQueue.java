@@ -0,0 +1,53 @@
+package net.jhorstmann.extsortcollect;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merge queue based on a binary heap, each element costs a poll and an offer with about {@code 2*log2(k)}
+ * comparisons.
+ */
+class HeapMergeQueue<T> implements MergeQueue<T> {
+    private final PriorityQueue<ReadableChunk<T>> chunks;
+
+    HeapMergeQueue(Collection<ReadableChunk<T>> chunks) {
+        this.chunks = new PriorityQueue<>(Math.max(1, chunks.size()));
+        for (ReadableChunk<T> chunk : chunks) {
+            if (chunk.hasNext()) {
+                this.chunks.add(chunk);
+            } else {
+                chunk.close();
+            }
+        }
+    }
+
+    @Override
+    public ReadableChunk<T> peek() {
+        return chunks.peek();
+    }
+
+    @Override
+    public void update() {
+        ReadableChunk<T> chunk = chunks.poll();
+        if (chunk.hasNext()) {
+            chunks.offer(chunk);
+        } else {
+            chunk.close();
+        }
+    }
+
+    @Override
+    public List<ReadableChunk<T>> chunks() {
+        return new ArrayList<>(chunks);
+    }
+
+    @Override
+    public void close() {
+        for (ReadableChunk<T> chunk : chunks) {
+            chunk.close();
+        }
+        chunks.clear();
+    }
+}
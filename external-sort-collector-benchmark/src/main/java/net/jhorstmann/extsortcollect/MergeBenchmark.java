@@ -0,0 +1,98 @@
+package net.jhorstmann.extsortcollect;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the merge queue implementations on in-memory chunks. This benchmark lives in the package of the
+ * collector to access the package private merge classes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class MergeBenchmark {
+
+    private static final long SEED = 1234567890L;
+    private static final int RECORDS = 1 << 20;
+
+    private static final ExternalSortCollectors.Serializer<Long> SERIALIZER = new ExternalSortCollectors.Serializer<Long>() {
+        @Override
+        public void write(ByteBuffer buffer, Long data) {
+            buffer.putLong(data);
+        }
+
+        @Override
+        public Long read(ByteBuffer in) {
+            return in.getLong();
+        }
+    };
+
+    @Param({"8", "64", "512", "4096"})
+    int runs;
+
+    @Param({"heap", "loserTree"})
+    String queue;
+
+    private ByteBuffer[] buffers;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(SEED);
+        int runLength = RECORDS / runs;
+
+        buffers = new ByteBuffer[runs];
+        for (int i = 0; i < runs; i++) {
+            long[] values = random.longs(runLength).toArray();
+            Arrays.sort(values);
+
+            ByteBuffer buffer = ByteBuffer.allocate(runLength * Long.BYTES);
+            for (long value : values) {
+                buffer.putLong(value);
+            }
+            buffer.flip();
+            buffers[i] = buffer;
+        }
+    }
+
+    @Benchmark
+    public long merge() {
+        Comparator<Long> comparator = Comparator.naturalOrder();
+
+        List<ReadableChunk<Long>> chunks = new ArrayList<>(runs);
+        for (int i = 0; i < runs; i++) {
+            Chunk chunk = new Chunk(null, 0, buffers[i].limit(), RECORDS / runs);
+            chunks.add(new ReadableChunk<>(SERIALIZER, null, null, comparator, chunk, new ByteBuffer[]{buffers[i].duplicate()}, new Cleaner[1], i));
+        }
+
+        MergeQueue<Long> mergeQueue = "heap".equals(queue) ? new HeapMergeQueue<>(chunks) : new LoserTree<>(chunks);
+
+        long[] checksum = new long[1];
+        try (ChunkMergeSpliterator<Long> spliterator = new ChunkMergeSpliterator<>(comparator, mergeQueue, RECORDS)) {
+            spliterator.forEachRemaining(value -> checksum[0] = 31 * checksum[0] + value);
+        }
+        return checksum[0];
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(MergeBenchmark.class.getName())
+                .forks(1)
+                .threads(1)
+                .warmupIterations(4)
+                .measurementIterations(4)
+                .build();
+
+        new Runner(options).run();
+    }
+}
@@ -98,7 +98,93 @@ public class SortStreamBenchmark {
                 .withWriteBufferSize(16 * 4096)
                 .build();
 
-        long t1 = System.currentTimeMillis();
+        return streamSort(input, configuration);
+    }
+
+    @Benchmark
+    public List<Data> streamSortPipelined(Input input) {
+        DataSerializer serializer = new DataSerializer();
+        Comparator<Data> comparator = Comparator.comparing(Data::getId);
+
+        ExternalSortCollectors.Configuration<Data> configuration = ExternalSortCollectors.configuration(serializer)
+                .withComparator(comparator)
+                .withInternalSortMaxItems(100_000)
+                .withMaxRecordSize(1024)
+                .withWriteBufferSize(16 * 4096)
+                .withPipelinedSort(2)
+                .build();
+
+        return streamSort(input, configuration);
+    }
+
+    @Benchmark
+    public List<Data> streamSortReplacementSelection(Input input) {
+        DataSerializer serializer = new DataSerializer();
+        Comparator<Data> comparator = Comparator.comparing(Data::getId);
+
+        ExternalSortCollectors.Configuration<Data> configuration = ExternalSortCollectors.configuration(serializer)
+                .withComparator(comparator)
+                .withInternalSortMaxItems(100_000)
+                .withMaxRecordSize(1024)
+                .withWriteBufferSize(16 * 4096)
+                .withReplacementSelection()
+                .build();
+
+        return streamSort(input, configuration);
+    }
+
+    @Benchmark
+    public List<Data> streamTopK(Input input) {
+        DataSerializer serializer = new DataSerializer();
+        Comparator<Data> comparator = Comparator.comparing(Data::getId);
+
+        ExternalSortCollectors.Configuration<Data> configuration = ExternalSortCollectors.configuration(serializer)
+                .withComparator(comparator)
+                .withInternalSortMaxItems(100_000)
+                .withMaxRecordSize(1024)
+                .withWriteBufferSize(16 * 4096)
+                .build();
+
+        try (Stream<Data> stream = getDataStream(input)
+                .collect(ExternalSortCollectors.topK(configuration, SKIP + LIMIT))) {
+            List<Data> list = stream
+                    .skip(SKIP)
+                    .collect(Collectors.toList());
+
+            List<Data> sorted = new ArrayList<>(list);
+            sorted.sort(comparator);
+
+            if (!sorted.equals(list)) {
+                throw new IllegalStateException("Data was not sorted");
+            }
+
+            return list;
+        }
+    }
+
+    @Benchmark
+    public List<Data> streamSortLzCompressed(Input input) {
+        return streamSort(input, compressedConfiguration(ExternalSortCollectors.BlockCodec.lz()));
+    }
+
+    @Benchmark
+    public List<Data> streamSortDeflateCompressed(Input input) {
+        return streamSort(input, compressedConfiguration(ExternalSortCollectors.BlockCodec.deflate(1)));
+    }
+
+    private static ExternalSortCollectors.Configuration<Data> compressedConfiguration(ExternalSortCollectors.BlockCodec codec) {
+        // the compression ratio is logged at debug level before the merge
+        return ExternalSortCollectors.configuration(new DataSerializer())
+                .withComparator(Comparator.comparing(Data::getId))
+                .withInternalSortMaxItems(100_000)
+                .withMaxRecordSize(1024)
+                .withWriteBufferSize(16 * 4096)
+                .withBlockCompression(codec)
+                .build();
+    }
+
+    private static List<Data> streamSort(Input input, ExternalSortCollectors.Configuration<Data> configuration) {
+        Comparator<Data> comparator = configuration.getComparator();
 
         try (Stream<Data> stream = getDataStream(input)
                 .collect(ExternalSortCollectors.externalSort(configuration))) {
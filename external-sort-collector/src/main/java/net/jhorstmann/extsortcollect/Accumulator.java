@@ -9,65 +9,54 @@ import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 class Accumulator<T> implements Closeable  {
     private static final Logger LOG = LoggerFactory.getLogger(ExternalSortCollectors.class);
 
-    // restrict maximum size per MappedByteBuffer to between 1GB and 2GB
+    // restrict maximum size per MappedByteBuffer to 1GB, chunks are written in segments of at most half that size
     private static final int MAX_MAPPING_SIZE = 1*1024*1024*1024;
-    private static final int MAPPING_SIZE_SHIFT = 63 - Long.numberOfLeadingZeros(MAX_MAPPING_SIZE);
+    static final int MAX_SEGMENT_SIZE = MAX_MAPPING_SIZE / 2;
+    // below this number of chunks the page cache read-ahead of mapped chunks works well enough
+    private static final int AUTO_BUFFERED_MIN_CHUNKS = 256;
 
-    static {
-        if (1 << MAPPING_SIZE_SHIFT != MAX_MAPPING_SIZE) {
-            throw new AssertionError("MAX_MAPPING_SIZE must be a power of two");
-        }
-    }
-
-    static class Chunk {
-        private final long offset;
-        private final long length;
-
-        Chunk(long offset, long length) {
-            this.offset = offset;
-            this.length = length;
-        }
-
-        long getOffset() {
-            return offset;
-        }
-
-        long getLength() {
-            return length;
-        }
+    static class Elements<T> implements RunBuffer<T> {
+        private static final int INITIAL_CAPACITY = 1024;
 
-        @Override
-        public String toString() {
-            return String.format("[%d, %d)", offset, offset+length);
-        }
-    }
-
-    static class Elements<T> {
-        private final Object[] data;
+        private final int maxItems;
+        private final long memoryBudget;
+        private final ExternalSortCollectors.SizeEstimator<T> sizeEstimator;
         private final boolean parallel;
+        private final ExternalSortCollectors.KeySerializer<T> keySerializer;
+        private Object[] data;
+        private long[] keys;
         private int size;
-
-        Elements(int capacity, boolean parallel) {
-            this.data = new Object[capacity];
+        private long estimatedSize;
+
+        Elements(int maxItems, long memoryBudget, ExternalSortCollectors.SizeEstimator<T> sizeEstimator, boolean parallel, ExternalSortCollectors.KeySerializer<T> keySerializer) {
+            this.maxItems = maxItems;
+            this.memoryBudget = memoryBudget;
+            this.sizeEstimator = sizeEstimator;
+            this.data = new Object[Math.min(maxItems, INITIAL_CAPACITY)];
+            this.keys = keySerializer == null ? null : new long[data.length];
             this.parallel = parallel;
+            this.keySerializer = keySerializer;
             this.size = 0;
         }
 
+        @Override
         @SuppressWarnings("unchecked")
-        void sort(Comparator<T> comparator) {
+        public void sort(Comparator<T> comparator) {
             long t1 = System.currentTimeMillis();
 
-            if (parallel) {
+            if (keys != null) {
+                KeyPrefixSort.sort(keys, data, size, (Comparator<Object>) comparator, keySerializer.isKeyPrefixComplete(), parallel);
+            } else if (parallel) {
                 Arrays.parallelSort(data, 0, size, (Comparator<Object>) comparator);
             } else {
                 Arrays.sort(data, 0, size, (Comparator<Object>) comparator);
@@ -79,8 +68,56 @@ class Accumulator<T> implements Closeable  {
             }
         }
 
-        void add(T elem) {
+        @Override
+        public void add(T elem) {
+            Object[] data = this.data;
+            if (size == data.length) {
+                int capacity = (int) Math.min(maxItems, data.length + (long) (data.length >> 1) + 1);
+                this.data = data = Arrays.copyOf(data, capacity);
+                if (keys != null) {
+                    this.keys = Arrays.copyOf(keys, capacity);
+                }
+            }
+            if (keys != null) {
+                keys[size] = keySerializer.keyPrefix(elem);
+            }
             data[size++] = elem;
+            if (memoryBudget > 0) {
+                estimatedSize += sizeEstimator.estimateSize(elem);
+            }
+        }
+
+        /**
+         * Combines neighbouring elements that compare equal after {@link #sort(Comparator)}.
+         */
+        @SuppressWarnings("unchecked")
+        void reduce(Comparator<T> comparator, BinaryOperator<T> reducer) {
+            Object[] data = this.data;
+            long[] keys = this.keys;
+            int size = this.size;
+            if (size == 0) {
+                return;
+            }
+            // each group keeps the key prefix of its first element
+            int n = 0;
+            T current = (T) data[0];
+            for (int i = 1; i < size; i++) {
+                T elem = (T) data[i];
+                if (comparator.compare(current, elem) == 0) {
+                    current = reducer.apply(current, elem);
+                } else {
+                    data[n] = current;
+                    if (keys != null) {
+                        keys[++n] = keys[i];
+                    } else {
+                        n++;
+                    }
+                    current = elem;
+                }
+            }
+            data[n++] = current;
+            Arrays.fill(data, n, size, null);
+            this.size = n;
         }
 
         @SuppressWarnings("unchecked")
@@ -95,93 +132,470 @@ class Accumulator<T> implements Closeable  {
             return elem;
         }
 
-        int size() {
+        @Override
+        public void writeTo(ChunkWriter<T> writer, int count) throws IOException {
+            if (keys != null) {
+                for (int i = 0; i < count; i++) {
+                    writer.write(keys[i], getAndClear(i));
+                }
+            } else {
+                for (int i = 0; i < count; i++) {
+                    writer.write(getAndClear(i));
+                }
+            }
+            Arrays.fill(data, count, size, null);
+        }
+
+        @Override
+        public void forEach(Consumer<? super T> action) {
+            for (int i = 0; i < size; i++) {
+                action.accept(get(i));
+            }
+        }
+
+        @Override
+        public int size() {
             return size;
         }
 
-        boolean isFull() {
-            return size == data.length;
+        @Override
+        public boolean isFull() {
+            return size == maxItems || (memoryBudget > 0 && estimatedSize >= memoryBudget);
         }
 
-        void clear() {
+        @Override
+        public void clear() {
             size = 0;
+            estimatedSize = 0;
         }
 
+        @Override
         @SuppressWarnings("unchecked")
-        Stream<T> stream() {
+        public Stream<T> stream() {
             return (Stream<T>)Arrays.stream(data, 0, size);
         }
     }
 
     private final ExternalSortCollectors.Serializer<T> serializer;
     private final Comparator<T> comparator;
+    private final int internalSortMaxItems;
+    private final int maxMergeFanIn;
+    private final long bufferMemoryBudget;
+    private final ExternalSortCollectors.SizeEstimator<T> sizeEstimator;
+    private final boolean parallelSort;
+    private final ExternalSortCollectors.KeySerializer<T> keySerializer;
     private final int maxRecordSize;
-    private final int writeBufferSize;
-    private final Elements<T> data;
+    private final int offHeapBufferSize;
+    private final ExternalSortCollectors.BlockCodec blockCodec;
     private final ArrayList<Chunk> chunks;
+    private final Executor spillExecutor;
+    private final ExternalSortCollectors.MergeReadMode mergeReadMode;
+    private final int mergeReadBufferSize;
+    private final int readHeadroom;
+    private final int pipelinedBuffers;
+    private final BlockingQueue<RunBuffer<T>> freeBuffers;
+    private final ArrayList<CompletableFuture<Chunk>> pendingSpills;
+    private final ReplacementSelection<T> selection;
+    // only the least limit elements are returned, runs are pruned to that many records
+    private final long limit;
+    // combines neighbouring equal elements of runs and merges, null to keep all elements
+    private final BinaryOperator<T> reducer;
+    // persists the chunks after each run, null unless the sort can be resumed
+    private final Checkpoint checkpoint;
+    private int checkpointedChunks;
+    private TopKHeap<T> topK;
+    private RunBuffer<T> data;
+    private int selectedRun = -1;
+    private long selectedRunCount;
+    private int allocatedBuffers;
     private long totalSize;
-    private ByteBuffer buffer;
-    private ByteBuffer directBuffer;
-    private FileChannel file;
+    private ChunkWriter<T> writer;
+    private final ExternalSortCollectors.SpillStorage spillStorage;
+    // all spill files referenced by chunks, new chunks are appended to the stripes in turn
+    private final ArrayList<FileChannel> files;
+    private final FileChannel[] stripes;
+    private int nextStripe;
+
+
+    Accumulator(ExternalSortCollectors.Configuration<T> configuration) {
+        this(configuration, Long.MAX_VALUE);
+    }
 
+    /**
+     * Creates an accumulator that only keeps the least {@code limit} elements. If they fit into the sort buffer they
+     * are kept in a bounded heap and nothing is spilled.
+     */
+    Accumulator(ExternalSortCollectors.Configuration<T> configuration, long limit) {
+        this(configuration, limit, configuration.isDistinct() ? (a, b) -> a : null);
+    }
+
+    /**
+     * Creates an accumulator that combines equal elements with {@code reducer} after each in-memory sort and during
+     * the merges, the earlier element in sort order is passed first.
+     */
+    Accumulator(ExternalSortCollectors.Configuration<T> configuration, long limit, BinaryOperator<T> reducer) {
+        this(configuration, limit, reducer, null);
+    }
 
-    Accumulator(ExternalSortCollectors.Serializer<T> serializer, Comparator<T> comparator, int maxRecordSize, int writeBufferSize, int internalSortMaxItems, boolean parallelSort) {
-        this.serializer = serializer;
-        this.comparator = comparator;
-        this.maxRecordSize = maxRecordSize;
-        this.writeBufferSize = writeBufferSize;
-        this.data = new Elements<>(internalSortMaxItems, parallelSort);
+    /**
+     * Creates an accumulator that continues with the chunks of {@code checkpoint} and updates it after each run.
+     */
+    Accumulator(ExternalSortCollectors.Configuration<T> configuration, Checkpoint checkpoint) {
+        this(configuration, Long.MAX_VALUE, configuration.isDistinct() ? (a, b) -> a : null, checkpoint);
+    }
+
+    private Accumulator(ExternalSortCollectors.Configuration<T> configuration, long limit, BinaryOperator<T> reducer, Checkpoint checkpoint) {
+        this.serializer = configuration.getSerializer();
+        this.comparator = configuration.getComparator();
+        this.internalSortMaxItems = configuration.getInternalSortMaxItems();
+        this.maxMergeFanIn = configuration.getMaxMergeFanIn();
+        this.parallelSort = configuration.isParallelSort();
+        this.keySerializer = configuration.getKeySerializer();
+        this.maxRecordSize = configuration.getMaxRecordSize();
+        this.offHeapBufferSize = configuration.getOffHeapBufferSize();
+        this.blockCodec = configuration.getBlockCodec();
         this.chunks = new ArrayList<>();
+        this.files = new ArrayList<>();
+        this.spillStorage = configuration.getSpillStorage();
+        this.stripes = new FileChannel[Math.max(1, spillStorage.getStripeCount())];
+        this.spillExecutor = configuration.getSpillExecutor();
+        this.mergeReadMode = configuration.getMergeReadMode();
+        this.mergeReadBufferSize = configuration.getMergeReadBufferSize();
+        // buffered reads have to hold at least one complete record or compressed frame
+        this.readHeadroom = blockCodec == null
+                ? maxRecordSize + (keySerializer == null ? 0 : Long.BYTES)
+                : ChunkWriter.FRAME_HEADER_SIZE + blockCodec.maxCompressedLength(configuration.getWriteBufferSize());
+        this.pipelinedBuffers = configuration.getPipelinedBuffers();
+        // buffers waiting for the spill executor count against the same budget
+        long memoryBudget = configuration.getMemoryBudget();
+        this.bufferMemoryBudget = memoryBudget > 0 ? Math.max(1, memoryBudget / (pipelinedBuffers + 1)) : 0;
+        this.sizeEstimator = configuration.getSizeEstimator();
+        this.freeBuffers = new LinkedBlockingQueue<>();
+        this.pendingSpills = new ArrayList<>();
+        this.data = newRunBuffer();
+        this.limit = limit;
+        this.reducer = reducer;
+        this.checkpoint = checkpoint;
+        if (checkpoint != null) {
+            this.chunks.addAll(checkpoint.getChunks());
+            this.files.addAll(checkpoint.getFiles());
+            this.checkpointedChunks = chunks.size();
+            this.totalSize = checkpoint.getPosition();
+        }
+        // the heap can not drop duplicates, so distinct sorts are limited after the merge. Without a budget the heap
+        // is only bounded by the number of items, which is unlimited for off-heap buffers.
+        this.topK = reducer == null && limit <= internalSortMaxItems && (memoryBudget > 0 || offHeapBufferSize == 0)
+                ? new TopKHeap<>(comparator, (int) limit, memoryBudget, sizeEstimator)
+                : null;
+        this.selection = configuration.isReplacementSelection()
+                ? new ReplacementSelection<>(comparator, internalSortMaxItems, bufferMemoryBudget, sizeEstimator)
+                : null;
+        this.writer = new ChunkWriter<>(serializer,
+                keySerializer,
+                configuration.getMaxRecordSize(),
+                configuration.getWriteBufferSize(),
+                configuration.getMaxSegmentSize(),
+                configuration.getIndexInterval(),
+                blockCodec);
+    }
+
+    private void sortRun(RunBuffer<T> data) {
+        data.sort(comparator);
+        if (reducer != null) {
+            // reducing sorts can not be configured with an off-heap buffer, so their buffers are always elements
+            ((Elements<T>) data).reduce(comparator, reducer);
+        }
+    }
+
+    /**
+     * Combines equal elements of a sorted spliterator if a reducer is configured.
+     */
+    private Spliterator<T> reduced(Spliterator<T> spliterator) {
+        return reducer == null ? spliterator : new ReducingSpliterator<>(spliterator, comparator, reducer);
+    }
+
+    private RunBuffer<T> newRunBuffer() {
+        allocatedBuffers++;
+        if (offHeapBufferSize > 0) {
+            return new OffHeapRunBuffer<>(keySerializer, internalSortMaxItems, maxRecordSize, offHeapBufferSize);
+        }
+        return new Elements<>(internalSortMaxItems, bufferMemoryBudget, sizeEstimator, parallelSort, keySerializer);
     }
 
     void add(T elem) {
         addWithoutSize(elem);
         this.totalSize++;
+        if (checkpoint != null && chunks.size() > checkpointedChunks) {
+            // the buffer was just written, so the chunks contain all elements that were added
+            writeCheckpoint(false);
+        }
+    }
+
+    private void writeCheckpoint(boolean complete) {
+        try {
+            try {
+                checkpoint.write(chunks, files, totalSize, complete);
+                checkpointedChunks = chunks.size();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } catch (Throwable t) {
+            try {
+                close();
+            } catch (Throwable t2) {
+                t.addSuppressed(t2);
+            }
+            throw t;
+        }
     }
 
     private void addWithoutSize(T elem) {
-        Elements<T> data = this.data;
+        if (topK != null) {
+            topK.add(elem);
+            if (topK.isOverBudget()) {
+                spillTopK();
+            }
+            return;
+        }
+        if (selection != null) {
+            select(elem);
+            return;
+        }
+        RunBuffer<T> data = this.data;
 
         data.add(elem);
         if (data.isFull()) {
-            data.sort(comparator);
+            if (pipelinedBuffers > 0) {
+                spillAsync(data);
+            } else {
+                sortRun(data);
 
+                try {
+                    writeSortedBuffer(data);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                data.clear();
+            }
+        }
+    }
+
+    private void select(T elem) {
+        ReplacementSelection<T> selection = this.selection;
+        if (selection.isFull()) {
             try {
-                writeSortedBuffer();
+                writeSelected();
             } catch (IOException e) {
                 throw new UncheckedIOException(e);
             }
+        }
+        selection.add(elem);
+    }
+
+    /**
+     * Writes the least element of the replacement selection heap, starting a new chunk when that element belongs to
+     * the next run.
+     */
+    private void writeSelected() throws IOException {
+        try {
+            T elem = selection.poll();
+            int run = selection.getRun();
+            if (run != selectedRun) {
+                finishSelectedRun();
+                writer.start(spillFile());
+                selectedRun = run;
+                selectedRunCount = 0;
+            }
+            // records of a run beyond the limit can not be part of the result
+            if (selectedRunCount++ < limit) {
+                writer.write(elem);
+            }
+        } catch (Throwable t) {
+            try {
+                close();
+            } catch (Throwable t2) {
+                t.addSuppressed(t2);
+            }
+            throw t;
+        }
+    }
+
+    private void finishSelectedRun() throws IOException {
+        if (selectedRun >= 0) {
+            chunks.add(writer.finish());
+            selectedRun = -1;
+        }
+    }
+
+    /**
+     * Continues with the regular run generation when the least {@code limit} elements do not fit into the memory
+     * budget.
+     */
+    @SuppressWarnings("unchecked")
+    private void spillTopK() {
+        Object[] sorted = topK.toSortedArray();
+        this.topK = null;
+        for (Object elem : sorted) {
+            addWithoutSize((T) elem);
+        }
+    }
+
+    private void spillAsync(RunBuffer<T> data) {
+        pendingSpills.add(CompletableFuture.supplyAsync(() -> sortAndWrite(data), spillExecutor));
+
+        RunBuffer<T> next = freeBuffers.poll();
+        if (next == null) {
+            if (allocatedBuffers <= pipelinedBuffers) {
+                next = newRunBuffer();
+            } else {
+                try {
+                    next = freeBuffers.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for a free buffer", e);
+                }
+            }
+        }
+        this.data = next;
+    }
+
+    private Chunk sortAndWrite(RunBuffer<T> data) {
+        try {
+            sortRun(data);
+            synchronized (this) {
+                return writeChunk(data);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
             data.clear();
+            freeBuffers.add(data);
         }
     }
 
-    Accumulator<T> combine(Accumulator<T> acc) {
-        if (acc.file != null) {
-            if (this.file == null) {
-                this.file = acc.file;
-                this.buffer = acc.buffer;
+    /**
+     * Waits for all buffers handed to the spill executor and appends their chunks in submission order, so that
+     * the merge keeps its tie-break on the chunk index stable.
+     */
+    private void awaitPendingSpills() {
+        ArrayList<CompletableFuture<Chunk>> pendingSpills = this.pendingSpills;
+        if (pendingSpills.isEmpty()) {
+            return;
+        }
+
+        long t1 = System.currentTimeMillis();
+        Throwable failure = null;
+        for (CompletableFuture<Chunk> future : pendingSpills) {
+            try {
+                Chunk chunk = future.join();
+                if (failure == null) {
+                    chunks.add(chunk);
+                }
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                if (failure == null) {
+                    failure = cause;
+                } else {
+                    failure.addSuppressed(cause);
+                }
+            }
+        }
+        pendingSpills.clear();
+
+        if (failure != null) {
+            try {
+                close();
+            } catch (Throwable t2) {
+                failure.addSuppressed(t2);
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure instanceof Error) {
+                throw (Error) failure;
             } else {
-                long t1 = System.currentTimeMillis();
+                throw new IllegalStateException(failure);
+            }
+        }
+
+        if (LOG.isTraceEnabled()) {
+            long t2 = System.currentTimeMillis();
+            LOG.trace("Waited [{}ms] for pending spills", t2 - t1);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    Accumulator<T> combine(Accumulator<T> acc) {
+        this.awaitPendingSpills();
+        acc.awaitPendingSpills();
+
+        if (topK != null && !acc.files.isEmpty()) {
+            spillTopK();
+        }
+        if (acc.topK != null) {
+            for (Object elem : acc.topK.toSortedArray()) {
+                addWithoutSize((T) elem);
+            }
+            acc.topK = null;
+        }
+        acc.data.forEach(this::addWithoutSize);
+        acc.releaseBuffers();
 
+        if (selection != null) {
+            acc.selection.drain(this::addWithoutSize);
+            // the chunks of the other accumulator are taken over below, including the one it is still writing
+            try {
+                acc.finishSelectedRun();
+            } catch (IOException e) {
                 try {
-                    try (Closeable closeable = acc) {
-                        FileChannel source = acc.file;
-                        long offset = file.position();
+                    close();
+                } catch (Throwable t2) {
+                    e.addSuppressed(t2);
+                }
+                try {
+                    acc.close();
+                } catch (Throwable t2) {
+                    e.addSuppressed(t2);
+                }
+                throw new UncheckedIOException(e);
+            }
+        }
 
-                        source.transferTo(0, source.size(), this.file);
+        // chunks refer to their spill file, so the files of the other accumulator are taken over without copying
+        if (!acc.files.isEmpty()) {
+            this.files.addAll(acc.files);
+            this.chunks.addAll(acc.chunks);
+            acc.files.clear();
+            Arrays.fill(acc.stripes, null);
+            acc.writer.close();
+        }
+        this.totalSize += acc.totalSize;
 
-                        this.chunks.ensureCapacity(this.chunks.size() + acc.chunks.size());
-                        for (Chunk chunk : acc.chunks) {
-                            this.chunks.add(new Chunk(chunk.offset + offset, chunk.length));
-                        }
-                    }
-                } catch (IOException e) {
-                    try {
-                        close();
-                    } catch (Throwable t2) {
-                        e.addSuppressed(t2);
-                    }
-                    throw new UncheckedIOException(e);
+        return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    Stream<T> finish() {
+        if (topK != null) {
+            return (Stream<T>) Arrays.stream(topK.toSortedArray());
+        }
+        Stream<T> stream;
+        try {
+            stream = writeRemaining() ? mergedStream() : sortedInMemory();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return limit < totalSize ? stream.limit(limit) : stream;
+    }
+
+    /**
+     * Finishes the sort like {@link #finish()}, but keeps the spill files until the returned result is closed.
+     */
+    @SuppressWarnings("unchecked")
+    ExternalSortCollectors.SortedResult<T> finishResult() {
+        try {
+            if (topK == null && writeRemaining()) {
+                try {
+                    mergePasses();
                 } catch (Throwable t) {
                     try {
                         close();
@@ -190,111 +604,324 @@ class Accumulator<T> implements Closeable  {
                     }
                     throw t;
                 }
+                writer.close();
+                releaseBuffers();
+                return new MergedResult();
+            }
+            Object[] sorted = topK != null ? topK.toSortedArray() : sortedInMemory().toArray();
+            close();
+            return new SortedArray<>(comparator, sorted);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-                if (LOG.isTraceEnabled()) {
-                    long t2 = System.currentTimeMillis();
-                    LOG.trace("Combined chunks in [{}ms]", (t2 - t1));
-                }
+    /**
+     * Writes the remaining elements as the last chunks if anything was spilled before, otherwise they are kept in
+     * memory.
+     *
+     * @return true if the elements were written
+     */
+    private boolean writeRemaining() throws IOException {
+        if (selection != null) {
+            if (files.isEmpty()) {
+                return false;
+            }
+            while (!selection.isEmpty()) {
+                writeSelected();
             }
+            finishSelectedRun();
+            return true;
+        }
+
+        RunBuffer<T> data = this.data;
+        if (data.size() > 0) {
+            sortRun(data);
         }
-        for (int i = 0; i < acc.data.size(); i++) {
-            T elem = acc.data.get(i);
-            addWithoutSize(elem);
+        awaitPendingSpills();
+        if (files.isEmpty()) {
+            return false;
         }
+        if (data.size() > 0) {
+            writeSortedBuffer(data);
+        }
+        if (checkpoint != null) {
+            writeCheckpoint(true);
+        }
+        return true;
+    }
 
-        this.totalSize += acc.totalSize;
+    @SuppressWarnings("unchecked")
+    private Stream<T> sortedInMemory() {
+        if (selection != null) {
+            // nothing was written yet, so all elements belong to the first run
+            Object[] sorted = new Object[selection.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = selection.poll();
+            }
+            return (Stream<T>) Arrays.stream(sorted);
+        }
+        return data.stream();
+    }
 
-        return this;
+    @Override
+    public void close() throws IOException {
+        for (CompletableFuture<Chunk> future : pendingSpills) {
+            try {
+                future.join();
+            } catch (CompletionException e) {
+                // already reported by awaitPendingSpills or irrelevant since we are closing anyway
+            }
+        }
+        pendingSpills.clear();
+
+        writer.close();
+        releaseBuffers();
+
+        Arrays.fill(stripes, null);
+        closeFiles();
     }
 
-    Stream<T> finish() {
-        Elements<T> data = this.data;
+    private void closeFiles() throws IOException {
+        closeAll(files);
+        files.clear();
+    }
 
-        if (data.size() > 0) {
-            data.sort(comparator);
-        }
-        if (file == null) {
-            return data.stream();
-        } else {
+    private static void closeAll(List<FileChannel> files) throws IOException {
+        IOException failure = null;
+        for (FileChannel file : files) {
             try {
-                if (data.size() > 0) {
-                    writeSortedBuffer();
-                }
-                return mergedStream();
+                file.close();
             } catch (IOException e) {
-                throw new UncheckedIOException(e);
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
             }
         }
+        if (failure != null) {
+            throw failure;
+        }
     }
 
-    @Override
-    public void close() throws IOException {
-        this.buffer = null;
 
-        ByteBuffer directBuffer = this.directBuffer;
-        if (directBuffer != null) {
-            Cleaner.clean(directBuffer);
-            this.directBuffer = null;
+
+    private void releaseBuffers() {
+        data.release();
+        RunBuffer<T> buffer;
+        while (null != (buffer = freeBuffers.poll())) {
+            buffer.release();
         }
+    }
 
-        if (file != null) {
-            this.file.close();
-            this.file = null;
+    private ExternalSortCollectors.MergeReadMode readMode(int chunkCount) {
+        if (checkpoint == null && !spillStorage.isMappable() && mergeReadMode != ExternalSortCollectors.MergeReadMode.PREFETCH) {
+            return ExternalSortCollectors.MergeReadMode.BUFFERED;
         }
+        if (mergeReadMode != ExternalSortCollectors.MergeReadMode.AUTO) {
+            return mergeReadMode;
+        }
+        long bufferMemory = (long) chunkCount * (mergeReadBufferSize + readHeadroom);
+        return chunkCount >= AUTO_BUFFERED_MIN_CHUNKS && bufferMemory <= Runtime.getRuntime().maxMemory() / 4
+                ? ExternalSortCollectors.MergeReadMode.BUFFERED
+                : ExternalSortCollectors.MergeReadMode.MAPPED;
     }
 
+    private MergeQueue<T> makeQueue(List<Chunk> chunks, ExternalSortCollectors.MergeReadMode mode) throws IOException {
+        return new LoserTree<>(readableChunks(chunks, mode));
+    }
 
+    private List<ReadableChunk<T>> readableChunks(List<Chunk> chunks, ExternalSortCollectors.MergeReadMode mode) throws IOException {
+        switch (mode) {
+            case BUFFERED:
+                return readChunks(chunks, null);
+            case PREFETCH:
+                return readChunks(chunks, spillExecutor);
+            default:
+                return mapChunks(chunks);
+        }
+    }
 
-    private PriorityQueue<ReadableChunk<T>> makeQueue(List<Chunk> chunks) throws IOException {
-        PriorityQueue<ReadableChunk<T>> queue = new PriorityQueue<>();
-        long[] offsets = new long[16];
-        Arrays.fill(offsets, -1L);
-        int m = 0;
+    /**
+     * Creates a read-ahead buffer for each of the given chunks, reading in the background if an executor is given.
+     */
+    private List<ReadableChunk<T>> readChunks(List<Chunk> chunks, Executor executor) {
+        List<ReadableChunk<T>> result = new ArrayList<>(chunks.size());
         for (int i = 0; i < chunks.size(); i++) {
             Chunk chunk = chunks.get(i);
-            long offset = chunk.getOffset();
-            long length = chunk.getLength();
-            m = (int) ((offset + length) >>> MAPPING_SIZE_SHIFT);
-            if (m >= offsets.length) {
-                int oldlen = offsets.length;
-                offsets = Arrays.copyOf(offsets, oldlen * 2);
-                Arrays.fill(offsets, oldlen, offsets.length, -1);
+            ReadAheadBuffer reader = new ReadAheadBuffer(chunk.getFile(), chunk.getOffset(), chunk.getLength(), mergeReadBufferSize, readHeadroom, executor);
+            result.add(new ReadableChunk<>(serializer, keySerializer, blockCodec, comparator, chunk, reader, i));
+        }
+
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Reading [{}] chunks through buffers of [{}] bytes [{}]", chunks.size(), mergeReadBufferSize, executor != null ? "prefetch" : "");
+        }
+        return result;
+    }
+
+    /**
+     * Maps all segments of the given chunks, sharing one mapping of at most {@link #MAX_MAPPING_SIZE} bytes between
+     * neighbouring segments in the same file.
+     */
+    private List<ReadableChunk<T>> mapChunks(List<Chunk> chunks) throws IOException {
+        // with pipelined spills the chunk list is in submission order, which can differ from the order in the file
+        IdentityHashMap<FileChannel, Integer> fileOrder = new IdentityHashMap<>();
+        Integer[] order = new Integer[chunks.size()];
+        int segmentCount = 0;
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+            segmentCount += chunks.get(i).getSegmentCount();
+            fileOrder.putIfAbsent(chunks.get(i).getFile(), fileOrder.size());
+        }
+        Arrays.sort(order, Comparator.<Integer>comparingInt(i -> fileOrder.get(chunks.get(i).getFile()))
+                .thenComparingLong(i -> chunks.get(i).getOffset()));
+
+        int[] segmentChunks = new int[segmentCount];
+        int[] segmentIndexes = new int[segmentCount];
+        for (int i = 0, j = 0; i < order.length; i++) {
+            for (int k = 0; k < chunks.get(order[i]).getSegmentCount(); k++, j++) {
+                segmentChunks[j] = order[i];
+                segmentIndexes[j] = k;
+            }
+        }
+
+        ByteBuffer[][] views = new ByteBuffer[chunks.size()][];
+        Cleaner[][] cleaners = new Cleaner[chunks.size()][];
+        for (int i = 0; i < chunks.size(); i++) {
+            views[i] = new ByteBuffer[chunks.get(i).getSegmentCount()];
+            cleaners[i] = new Cleaner[chunks.get(i).getSegmentCount()];
+        }
+
+        int mappingCount = 0;
+        for (int i = 0; i < segmentCount; ) {
+            FileChannel file = chunks.get(segmentChunks[i]).getFile();
+            long mappingOffset = chunks.get(segmentChunks[i]).getSegmentOffset(segmentIndexes[i]);
+            long mappingEnd = mappingOffset;
+            int j = i;
+            while (j < segmentCount) {
+                Chunk chunk = chunks.get(segmentChunks[j]);
+                if (chunk.getFile() != file) {
+                    break;
+                }
+                long end = chunk.getSegmentOffset(segmentIndexes[j]) + chunk.getSegmentLength(segmentIndexes[j]);
+                if (end - mappingOffset > MAX_MAPPING_SIZE) {
+                    break;
+                }
+                mappingEnd = end;
+                j++;
             }
-            if (offsets[m] == -1) {
-                offsets[m] = offset;
+
+            MappedByteBuffer mapping = file.map(FileChannel.MapMode.READ_ONLY, mappingOffset, mappingEnd - mappingOffset);
+            Cleaner cleaner = new Cleaner(mapping);
+            mappingCount++;
+
+            for (; i < j; i++) {
+                Chunk chunk = chunks.get(segmentChunks[i]);
+                long offset = chunk.getSegmentOffset(segmentIndexes[i]);
+                long limit = offset + chunk.getSegmentLength(segmentIndexes[i]);
+
+                ByteBuffer view = mapping.duplicate();
+                view.position(Math.toIntExact(offset - mappingOffset));
+                view.limit(Math.toIntExact(limit - mappingOffset));
+
+                views[segmentChunks[i]][segmentIndexes[i]] = view.slice();
+                cleaners[segmentChunks[i]][segmentIndexes[i]] = cleaner.reference();
             }
         }
 
         if (LOG.isTraceEnabled()) {
-            LOG.trace("Mapping chunks at offsets {}", Arrays.toString(Arrays.copyOf(offsets, m)));
+            LOG.trace("Mapped [{}] segments of [{}] chunks in [{}] files using [{}] mappings", segmentCount, chunks.size(), fileOrder.size(), mappingCount);
         }
 
-        MappedByteBuffer[] mappings = new MappedByteBuffer[m+1];
-        Cleaner[] cleaners = new Cleaner[m+1];
-        for (int i = 0; i < m+1; i++) {
-            long offset = offsets[i];
-            long length = (i == m ? file.size() : offsets[i+1]) - offset;
-            MappedByteBuffer buffer = file.map(FileChannel.MapMode.READ_ONLY, offset, length);
-            mappings[i] = buffer;
-            cleaners[i] = new Cleaner(buffer);
+        List<ReadableChunk<T>> result = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            result.add(new ReadableChunk<>(serializer, keySerializer, blockCodec, comparator, chunks.get(i), views[i], cleaners[i], i));
         }
+        return result;
+    }
 
-        for (int i = 0; i < chunks.size(); i++) {
-            Chunk chunk = chunks.get(i);
-            long offset = chunk.getOffset();
-            long limit = offset + chunk.getLength();
+    /**
+     * Merges groups of consecutive chunks into a new spill file until at most {@link #maxMergeFanIn} chunks remain.
+     * Consecutive groups keep the merge stable since the relative order of chunks is preserved.
+     */
+    private void mergePasses() throws IOException {
+        while (maxMergeFanIn > 0 && chunks.size() > maxMergeFanIn) {
+            long t1 = System.currentTimeMillis();
 
-            m = (int) (limit >> MAPPING_SIZE_SHIFT);
+            int groups = (chunks.size() + maxMergeFanIn - 1) / maxMergeFanIn;
+            FileChannel target = createSpillFile();
+            ArrayList<Chunk> merged = new ArrayList<>(groups);
+            try {
+                for (int i = 0; i < groups; i++) {
+                    int from = (int) ((long) chunks.size() * i / groups);
+                    int to = (int) ((long) chunks.size() * (i + 1) / groups);
+                    merged.add(mergeChunks(target, chunks.subList(from, to)));
+                }
+            } catch (Throwable t) {
+                try {
+                    target.close();
+                } catch (Throwable t2) {
+                    t.addSuppressed(t2);
+                }
+                throw t;
+            }
 
-            ByteBuffer view = mappings[m].slice();
-            view.position(Math.toIntExact(offset - offsets[m]));
-            view.limit(Math.toIntExact(limit - offsets[m]));
+            if (LOG.isDebugEnabled()) {
+                long t2 = System.currentTimeMillis();
+                LOG.debug("Merged [{}] chunks into [{}] chunks in [{}ms]", chunks.size(), merged.size(), t2 - t1);
+            }
 
-            Cleaner cleaner = cleaners[m].reference();
+            this.chunks.clear();
+            this.chunks.addAll(merged);
+            Arrays.fill(stripes, null);
+            closeFiles();
+            this.files.add(target);
+            if (checkpoint != null) {
+                // the merged chunks replace the source files of the pass
+                writeCheckpoint(true);
+            }
+        }
+    }
 
-            queue.add(new ReadableChunk<>(serializer, comparator, view, cleaner, i));
+    /**
+     * Merges a group of chunks into a single chunk, which is pruned to the first {@link #limit} records.
+     */
+    private Chunk mergeChunks(FileChannel target, List<Chunk> group) throws IOException {
+        if (group.size() == 1) {
+            Chunk chunk = group.get(0);
+            FileChannel source = chunk.getFile();
+            long offset = target.position();
+            long position = chunk.getOffset();
+            long end = position + chunk.getLength();
+            while (position < end) {
+                position += source.transferTo(position, end - position, target);
+            }
+            return chunk.moveTo(target, offset);
+        }
+
+        ChunkWriter<T> writer = this.writer;
+        writer.start(target);
+        try (ChunkMergeSpliterator<T> merge = new ChunkMergeSpliterator<>(comparator, makeQueue(group, readMode(group.size())), Long.MAX_VALUE)) {
+            Spliterator<T> spliterator = reduced(merge);
+            Consumer<T> write = elem -> {
+                try {
+                    writer.write(elem);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            };
+            if (limit == Long.MAX_VALUE) {
+                spliterator.forEachRemaining(write);
+            } else {
+                for (long i = 0; i < limit; i++) {
+                    if (!spliterator.tryAdvance(write)) {
+                        break;
+                    }
+                }
+            }
         }
-        return queue;
+        return writer.finish();
     }
 
     private Stream<T> mergedStream() throws IOException {
@@ -304,89 +931,290 @@ class Accumulator<T> implements Closeable  {
                 LOG.debug("Merging [{}] chunks with avg size [{}KiB], average record size [{} bytes]",
                         summary.getCount(), (long)Math.ceil(summary.getAverage()/1024), (long)Math.ceil((double)summary.getSum()/ totalSize));
             }
+            if (LOG.isDebugEnabled() && blockCodec != null) {
+                long uncompressed = chunks.stream().mapToLong(Chunk::getUncompressedLength).sum();
+                long compressed = chunks.stream().mapToLong(Chunk::getLength).sum();
+                LOG.debug("Compressed [{}] bytes of records to [{}] bytes, ratio [{}]",
+                        uncompressed, compressed, String.format("%.2f", (double) uncompressed / Math.max(1, compressed)));
+            }
 
-            PriorityQueue<ReadableChunk<T>> queue = makeQueue(this.chunks);
+            mergePasses();
 
-            ChunkMergeSpliterator<T> spliterator = new ChunkMergeSpliterator<>(comparator, queue, totalSize);
+            ExternalSortCollectors.MergeReadMode mode = readMode(chunks.size());
+            MergeQueue<T> queue = makeQueue(this.chunks, mode);
 
-            return StreamSupport.stream(spliterator, false)
+            // pruned or reduced runs contain fewer records than were added
+            long size = limit < totalSize || reducer != null ? chunks.stream().mapToLong(Chunk::getCount).sum() : totalSize;
+            ChunkMergeSpliterator<T> spliterator = new ChunkMergeSpliterator<>(comparator, queue, size);
+
+            Stream<T> stream = StreamSupport.stream(reduced(spliterator), false)
                     .onClose(spliterator::close);
+            if (checkpoint != null) {
+                // the checkpoint is kept until the merged stream is closed, so the merge can be repeated
+                stream = stream.onClose(checkpoint::delete);
+            }
+            if (mode != ExternalSortCollectors.MergeReadMode.MAPPED) {
+                // buffered chunks keep reading from the spill files, so they are closed with the stream
+                List<FileChannel> files = new ArrayList<>(this.files);
+                this.files.clear();
+                Arrays.fill(stripes, null);
+                stream = stream.onClose(() -> {
+                    try {
+                        closeAll(files);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+            return stream;
         }
     }
 
-    private static FileChannel createTempFile() throws IOException {
-        Path tempFile = Files.createTempFile("extsort_", ".tmp");
-        return FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+    /**
+     * Returns the spill file for the next chunk, chunks are written to the stripes of the spill storage in turn.
+     */
+    private FileChannel spillFile() throws IOException {
+        int stripe = nextStripe;
+        nextStripe = stripe + 1 == stripes.length ? 0 : stripe + 1;
+        FileChannel file = stripes[stripe];
+        if (file == null) {
+            if (checkpoint != null) {
+                stripes[stripe] = file = checkpoint.createSpillFile();
+                files.add(file);
+            } else {
+                // the stripes are created together, so that they end up on different devices
+                FileChannel[] created = spillStorage.createStripes();
+                System.arraycopy(created, 0, stripes, 0, stripes.length);
+                files.addAll(Arrays.asList(created));
+                file = stripes[stripe];
+            }
+        }
+        return file;
     }
 
-    private void writeSortedBuffer() throws IOException {
-        ByteBuffer buffer = this.buffer;
-        ByteBuffer directBuffer = this.directBuffer;
-        FileChannel file = this.file;
-        ArrayList<Chunk> chunks = this.chunks;
+    private FileChannel createSpillFile() throws IOException {
+        return checkpoint != null ? checkpoint.createSpillFile() : spillStorage.createSpillFile();
+    }
 
+    private void writeSortedBuffer(RunBuffer<T> data) throws IOException {
         try {
-            if (file == null) {
-                this.file = file = createTempFile();
+            chunks.add(writeChunk(data));
+        } catch (Throwable t) {
+            try {
+                close();
+            } catch (Throwable t2) {
+                t.addSuppressed(t2);
             }
-            if (buffer == null) {
-                this.buffer = buffer = ByteBuffer.allocate(writeBufferSize);
-                this.directBuffer = directBuffer = ByteBuffer.allocateDirect(writeBufferSize);
+            throw t;
+        }
+    }
+
+    private Chunk writeChunk(RunBuffer<T> data) throws IOException {
+        ChunkWriter<T> writer = this.writer;
+        writer.start(spillFile());
+        // records of a run beyond the limit can not be part of the result
+        data.writeTo(writer, (int) Math.min(data.size(), limit));
+        return writer.finish();
+    }
+
+    /**
+     * Sorted result backed by the chunks of this accumulator, each stream maps or reads the chunks anew.
+     */
+    private class MergedResult implements ExternalSortCollectors.SortedResult<T> {
+        // number of records in the chunks, which can still contain equal elements if a reducer is configured
+        private final long recordCount = chunks.stream().mapToLong(Chunk::getCount).sum();
+        private long size = -1;
+
+        @Override
+        public long size() {
+            if (size < 0) {
+                if (reducer == null) {
+                    size = recordCount;
+                } else {
+                    try (Stream<T> stream = stream()) {
+                        size = stream.count();
+                    }
+                }
             }
+            return size;
+        }
 
-            long t1 = System.currentTimeMillis();
-            int blocks = 0;
-            long offset = file.position();
-            for (int i = 0; i < data.size(); i++) {
-                T elem = data.getAndClear(i);
-                serializer.write(buffer, elem);
-                if (buffer.remaining() < maxRecordSize) {
-                    buffer.flip();
-
-                    directBuffer.clear();
-                    directBuffer.put(buffer);
-                    directBuffer.flip();
-
-                    file.write(directBuffer);
-
-                    buffer.clear();
-                    blocks++;
+        @Override
+        public Stream<T> seekToRank(long rank) {
+            checkRank(rank);
+            List<ReadableChunk<T>> readable;
+            try {
+                readable = readableChunks(chunks, readMode(chunks.size()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            ChunkMergeSpliterator<T> merge;
+            Spliterator<T> spliterator;
+            try {
+                // ranks of reduced results do not correspond to records, so their elements are skipped by merging
+                long skipped = rank > 0 && reducer == null ? RankSelection.seek(readable, comparator, rank) : 0;
+                merge = new ChunkMergeSpliterator<>(comparator, new LoserTree<>(readable), recordCount - skipped);
+                spliterator = reduced(merge);
+                // the remaining records before the rank lie within one index interval of each chunk
+                Consumer<T> discard = elem -> {
+                };
+                while (skipped < rank && spliterator.tryAdvance(discard)) {
+                    skipped++;
                 }
+            } catch (Throwable t) {
+                for (ReadableChunk<T> chunk : readable) {
+                    chunk.close();
+                }
+                throw t;
             }
-            // write remaining data to file
-            if (buffer.position() > 0) {
-                buffer.flip();
+            return StreamSupport.stream(spliterator, false)
+                    .onClose(merge::close);
+        }
 
-                directBuffer.clear();
-                directBuffer.put(buffer);
-                directBuffer.flip();
+        @Override
+        public Stream<T> from(T key) {
+            return keyRange(key, null);
+        }
 
-                file.write(directBuffer);
+        @Override
+        public Stream<T> range(T from, T to) {
+            return keyRange(from, Objects.requireNonNull(to));
+        }
 
-                buffer.clear();
-                blocks++;
+        private Stream<T> keyRange(T from, T to) {
+            Objects.requireNonNull(from);
+            List<Chunk> selected = new ArrayList<>(chunks.size());
+            for (Chunk chunk : chunks) {
+                if (overlaps(chunk, from, to)) {
+                    selected.add(chunk);
+                }
+            }
+            List<ReadableChunk<T>> readable;
+            try {
+                readable = readableChunks(selected, readMode(selected.size()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
-            long length = file.position() - offset;
 
-            if (LOG.isTraceEnabled()) {
-                long t2 = System.currentTimeMillis();
-                LOG.trace("Wrote chunk with [{}] blocks in [{}ms]", blocks, t2 - t1);
+            ChunkMergeSpliterator<T> spliterator;
+            try {
+                long size = 0;
+                boolean sized = true;
+                for (int i = 0; i < readable.size(); i++) {
+                    ReadableChunk<T> chunk = readable.get(i);
+                    chunk.skipLessThan(from);
+                    if (to != null) {
+                        chunk = chunk.endBefore(to);
+                        readable.set(i, chunk);
+                    }
+                    size += chunk.remaining();
+                    sized &= !chunk.hasEndKey();
+                }
+                spliterator = new ChunkMergeSpliterator<>(comparator, new LoserTree<>(readable), size, sized);
+            } catch (Throwable t) {
+                for (ReadableChunk<T> chunk : readable) {
+                    chunk.close();
+                }
+                throw t;
             }
+            return StreamSupport.stream(reduced(spliterator), false)
+                    .onClose(spliterator::close);
+        }
 
-            if (length > MAX_MAPPING_SIZE/2) {
-                throw new IllegalStateException("Chunk too large [" + length + "]");
+        /**
+         * Checks the zone map of a chunk against the range {@code [from, to)}, where {@code to} may be null.
+         */
+        private boolean overlaps(Chunk chunk, T from, T to) {
+            if (chunk.getCount() == 0) {
+                return false;
+            }
+            if (chunk.getFirstRecord() == null || chunk.getLastRecord() == null) {
+                return true;
             }
+            return comparator.compare(readRecord(chunk.getLastRecord()), from) >= 0
+                    && (to == null || comparator.compare(readRecord(chunk.getFirstRecord()), to) < 0);
+        }
 
-            chunks.add(new Chunk(offset, length));
-        } catch (Throwable t) {
+        private T readRecord(byte[] record) {
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            if (keySerializer != null) {
+                buffer.position(Long.BYTES);
+            }
+            return serializer.read(buffer);
+        }
+
+        @Override
+        public void close() {
             try {
-                close();
-            } catch (Throwable t2) {
-                t.addSuppressed(t2);
+                Accumulator.this.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
-            throw t;
         }
     }
 
-}
+    /**
+     * Sorted result of a sort that did not spill.
+     */
+    private static class SortedArray<T> implements ExternalSortCollectors.SortedResult<T> {
+        private final Comparator<T> comparator;
+        private final Object[] sorted;
+
+        SortedArray(Comparator<T> comparator, Object[] sorted) {
+            this.comparator = comparator;
+            this.sorted = sorted;
+        }
+
+        @Override
+        public long size() {
+            return sorted.length;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Stream<T> seekToRank(long rank) {
+            checkRank(rank);
+            return (Stream<T>) Arrays.stream(sorted, (int) Math.min(rank, sorted.length), sorted.length);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Stream<T> from(T key) {
+            return (Stream<T>) Arrays.stream(sorted, lowerBound(Objects.requireNonNull(key)), sorted.length);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Stream<T> range(T from, T to) {
+            int start = lowerBound(Objects.requireNonNull(from));
+            int end = Math.max(start, lowerBound(Objects.requireNonNull(to)));
+            return (Stream<T>) Arrays.stream(sorted, start, end);
+        }
+
+        @SuppressWarnings("unchecked")
+        private int lowerBound(T key) {
+            int lo = 0;
+            int hi = sorted.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (comparator.compare((T) sorted[mid], key) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
 
+        @Override
+        public void close() {
+        }
+    }
+
+    private static void checkRank(long rank) {
+        if (rank < 0) {
+            throw new IllegalArgumentException("rank must not be negative");
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package net.jhorstmann.extsortcollect;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * File of record aligned blocks followed by a block index and a fixed size trailer:
+ * <pre>
+ * block*
+ * index entry* (long offset, int length, int count)
+ * footer       (int length, first record, int length, last record), only in non-empty sorted files
+ * trailer      (long index offset, int block count, int flags, long record count, long magic)
+ * </pre>
+ * The index allows splitting the file into independent regions that can be decoded in parallel.
+ */
+class BlockFile implements Closeable {
+    static final long MAGIC = 0x4558_5453_4F52_5431L;
+    static final int INDEX_ENTRY_SIZE = 16;
+    static final int TRAILER_SIZE = 32;
+    // the records are sorted and the footer holds the first and last record
+    static final int FLAG_SORTED = 1;
+
+    private final FileChannel file;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final long[] cumulativeCounts;
+    private final int flags;
+    private final byte[] firstRecord;
+    private final byte[] lastRecord;
+
+    private BlockFile(FileChannel file, long[] offsets, int[] lengths, long[] cumulativeCounts, int flags, byte[] firstRecord, byte[] lastRecord) {
+        this.file = file;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.cumulativeCounts = cumulativeCounts;
+        this.flags = flags;
+        this.firstRecord = firstRecord;
+        this.lastRecord = lastRecord;
+    }
+
+    static boolean isBlockFile(FileChannel file) throws IOException {
+        long size = file.size();
+        if (size < TRAILER_SIZE) {
+            return false;
+        }
+        ByteBuffer magic = ByteBuffer.allocate(Long.BYTES);
+        readFully(file, magic, size - Long.BYTES);
+        return magic.getLong(0) == MAGIC;
+    }
+
+    static BlockFile open(Path path) {
+        try {
+            FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                return open(file);
+            } catch (Throwable t) {
+                try {
+                    file.close();
+                } catch (Throwable t2) {
+                    t.addSuppressed(t2);
+                }
+                throw t;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static BlockFile open(FileChannel file) throws IOException {
+        long size = file.size();
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        readFully(file, trailer, size - TRAILER_SIZE);
+        trailer.flip();
+
+        long indexOffset = trailer.getLong();
+        int blockCount = trailer.getInt();
+        int flags = trailer.getInt();
+        long recordCount = trailer.getLong();
+        long magic = trailer.getLong();
+        if (magic != MAGIC) {
+            throw new IllegalStateException("Not a block file");
+        }
+
+        ByteBuffer index = ByteBuffer.allocate(Math.multiplyExact(blockCount, INDEX_ENTRY_SIZE));
+        readFully(file, index, indexOffset);
+        index.flip();
+
+        long[] offsets = new long[blockCount];
+        int[] lengths = new int[blockCount];
+        long[] cumulativeCounts = new long[blockCount + 1];
+        for (int i = 0; i < blockCount; i++) {
+            offsets[i] = index.getLong();
+            lengths[i] = index.getInt();
+            cumulativeCounts[i + 1] = cumulativeCounts[i] + index.getInt();
+        }
+        if (cumulativeCounts[blockCount] != recordCount) {
+            throw new IllegalStateException("Block index does not match record count [" + recordCount + "]");
+        }
+
+        byte[] firstRecord = null;
+        byte[] lastRecord = null;
+        if ((flags & FLAG_SORTED) != 0 && recordCount > 0) {
+            long footerOffset = indexOffset + (long) blockCount * INDEX_ENTRY_SIZE;
+            ByteBuffer footer = ByteBuffer.allocate(Math.toIntExact(size - TRAILER_SIZE - footerOffset));
+            readFully(file, footer, footerOffset);
+            footer.flip();
+            firstRecord = new byte[footer.getInt()];
+            footer.get(firstRecord);
+            lastRecord = new byte[footer.getInt()];
+            footer.get(lastRecord);
+        }
+
+        return new BlockFile(file, offsets, lengths, cumulativeCounts, flags, firstRecord, lastRecord);
+    }
+
+    private static void readFully(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) < 0) {
+                throw new IllegalStateException("Unexpected end of file");
+            }
+        }
+    }
+
+    FileChannel getFile() {
+        return file;
+    }
+
+    int getBlockCount() {
+        return offsets.length;
+    }
+
+    long getBlockOffset(int block) {
+        return offsets[block];
+    }
+
+    int getBlockLength(int block) {
+        return lengths[block];
+    }
+
+    /**
+     * Number of records in the blocks {@code [from, to)}.
+     */
+    long getRecordCount(int from, int to) {
+        return cumulativeCounts[to] - cumulativeCounts[from];
+    }
+
+    int getFlags() {
+        return flags;
+    }
+
+    boolean isSorted() {
+        return (flags & FLAG_SORTED) != 0;
+    }
+
+    long getRecordCount() {
+        return cumulativeCounts[cumulativeCounts.length - 1];
+    }
+
+    /**
+     * Serialized first record of a sorted file, null if the file is empty or not sorted.
+     */
+    byte[] getFirstRecord() {
+        return firstRecord;
+    }
+
+    /**
+     * Serialized last record of a sorted file, null if the file is empty or not sorted.
+     */
+    byte[] getLastRecord() {
+        return lastRecord;
+    }
+
+    @Override
+    public void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package net.jhorstmann.extsortcollect;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Comparator;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Reads the blocks {@code [block, end)} of a {@link BlockFile} from memory mapped regions. Splitting divides the
+ * remaining blocks in half, so that regions of the file can be decoded in parallel. Spliterators of sorted files report
+ * the comparator of their order.
+ */
+class BlockFileSpliterator<T> implements Spliterator<T>, Closeable {
+    private static final int MAX_MAPPING_SIZE = 1 << 30;
+
+    private final BlockFile blockFile;
+    private final ExternalSortCollectors.Serializer<T> serializer;
+    private final Comparator<? super T> comparator;
+    private final boolean sorted;
+    private int block;
+    private final int end;
+    private MappedByteBuffer mapping;
+    private long mappingOffset;
+    private int mappingEnd;
+    private ByteBuffer buffer;
+    private long remaining;
+    private boolean started;
+
+    BlockFileSpliterator(BlockFile blockFile, ExternalSortCollectors.Serializer<T> serializer) {
+        this(blockFile, serializer, null, false, 0, blockFile.getBlockCount());
+    }
+
+    /**
+     * Reads a sorted file, the natural order is reported as a {@code null} comparator.
+     */
+    BlockFileSpliterator(BlockFile blockFile, ExternalSortCollectors.Serializer<T> serializer, Comparator<? super T> comparator) {
+        this(blockFile, serializer, comparator == Comparator.naturalOrder() ? null : comparator, true, 0, blockFile.getBlockCount());
+    }
+
+    private BlockFileSpliterator(BlockFile blockFile, ExternalSortCollectors.Serializer<T> serializer, Comparator<? super T> comparator, boolean sorted, int block, int end) {
+        this.blockFile = blockFile;
+        this.serializer = serializer;
+        this.comparator = comparator;
+        this.sorted = sorted;
+        this.block = block;
+        this.end = end;
+        this.remaining = blockFile.getRecordCount(block, end);
+    }
+
+    private boolean nextBlock() {
+        while (buffer == null || !buffer.hasRemaining()) {
+            if (block >= end) {
+                release();
+                return false;
+            }
+            if (mapping == null || block >= mappingEnd) {
+                map();
+            }
+            ByteBuffer view = mapping.duplicate();
+            int position = Math.toIntExact(blockFile.getBlockOffset(block) - mappingOffset);
+            view.position(position);
+            view.limit(position + blockFile.getBlockLength(block));
+            this.buffer = view;
+            this.block++;
+        }
+        return true;
+    }
+
+    private void map() {
+        release();
+
+        BlockFile blockFile = this.blockFile;
+        long offset = blockFile.getBlockOffset(block);
+        long limit = offset + blockFile.getBlockLength(block);
+        int mappingEnd = block + 1;
+        while (mappingEnd < end && blockFile.getBlockOffset(mappingEnd) + blockFile.getBlockLength(mappingEnd) - offset <= MAX_MAPPING_SIZE) {
+            limit = blockFile.getBlockOffset(mappingEnd) + blockFile.getBlockLength(mappingEnd);
+            mappingEnd++;
+        }
+
+        try {
+            this.mapping = blockFile.getFile().map(FileChannel.MapMode.READ_ONLY, offset, limit - offset);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.mappingOffset = offset;
+        this.mappingEnd = mappingEnd;
+    }
+
+    private void release() {
+        MappedByteBuffer mapping = this.mapping;
+        if (mapping != null) {
+            this.buffer = null;
+            this.mapping = null;
+            Cleaner.clean(mapping);
+        }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        started = true;
+        if (!nextBlock()) {
+            return false;
+        }
+        remaining--;
+        action.accept(serializer.read(buffer));
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super T> action) {
+        started = true;
+        ExternalSortCollectors.Serializer<T> serializer = this.serializer;
+        while (nextBlock()) {
+            ByteBuffer buffer = this.buffer;
+            while (buffer.hasRemaining()) {
+                action.accept(serializer.read(buffer));
+            }
+        }
+        remaining = 0;
+    }
+
+    /**
+     * Splits off the first half of the remaining blocks, only possible before the traversal started.
+     */
+    @Override
+    public Spliterator<T> trySplit() {
+        if (started || end - block < 2) {
+            return null;
+        }
+        int mid = (block + end) >>> 1;
+        BlockFileSpliterator<T> prefix = new BlockFileSpliterator<>(blockFile, serializer, comparator, sorted, block, mid);
+        this.block = mid;
+        this.remaining -= prefix.remaining;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return remaining;
+    }
+
+    @Override
+    public int characteristics() {
+        int characteristics = Spliterator.IMMUTABLE | Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.SIZED | Spliterator.SUBSIZED;
+        return sorted ? characteristics | Spliterator.SORTED : characteristics;
+    }
+
+    @Override
+    public Comparator<? super T> getComparator() {
+        if (!sorted) {
+            throw new IllegalStateException();
+        }
+        return comparator;
+    }
+
+    @Override
+    public void close() {
+        release();
+        blockFile.close();
+    }
+}
@@ -0,0 +1,167 @@
+package net.jhorstmann.extsortcollect;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Writes records in the {@link BlockFile} format, each block holds as many records as fit in the write buffer. Writers
+ * of sorted files keep the first and last record for the footer and force the file to the storage device when finished.
+ */
+class BlockFileWriter<T> implements Closeable {
+    private final ExternalSortCollectors.Serializer<T> serializer;
+    private final int maxRecordSize;
+    private final FileChannel file;
+    private final ByteBuffer buffer;
+    private final boolean sorted;
+    private long[] offsets;
+    private int[] lengths;
+    private int[] counts;
+    private int blocks;
+    private int blockRecords;
+    private long recordCount;
+    private int recordStart;
+    private byte[] firstRecord;
+    private byte[] lastRecord;
+
+    BlockFileWriter(Path path, ExternalSortCollectors.Serializer<T> serializer, int maxRecordSize, int writeBufferSize) throws IOException {
+        this(path, serializer, maxRecordSize, writeBufferSize, false);
+    }
+
+    BlockFileWriter(Path path, ExternalSortCollectors.Serializer<T> serializer, int maxRecordSize, int writeBufferSize, boolean sorted) throws IOException {
+        this.serializer = serializer;
+        this.sorted = sorted;
+        this.maxRecordSize = maxRecordSize;
+        this.file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        this.buffer = ByteBuffer.allocateDirect(writeBufferSize);
+        this.offsets = new long[16];
+        this.lengths = new int[16];
+        this.counts = new int[16];
+    }
+
+    void write(T elem) throws IOException {
+        ByteBuffer buffer = this.buffer;
+        recordStart = buffer.position();
+        serializer.write(buffer, elem);
+        if (sorted && recordCount == 0) {
+            firstRecord = copyRecord();
+        }
+        blockRecords++;
+        recordCount++;
+        if (buffer.remaining() < maxRecordSize) {
+            flush();
+        }
+    }
+
+    private byte[] copyRecord() {
+        ByteBuffer record = buffer.duplicate();
+        record.flip();
+        record.position(recordStart);
+        byte[] bytes = new byte[record.remaining()];
+        record.get(bytes);
+        return bytes;
+    }
+
+    private void flush() throws IOException {
+        ByteBuffer buffer = this.buffer;
+        if (sorted) {
+            // the last record of the block might be the last one of the file
+            lastRecord = copyRecord();
+        }
+        if (blocks == offsets.length) {
+            offsets = Arrays.copyOf(offsets, blocks * 2);
+            lengths = Arrays.copyOf(lengths, blocks * 2);
+            counts = Arrays.copyOf(counts, blocks * 2);
+        }
+        offsets[blocks] = file.position();
+        lengths[blocks] = buffer.position();
+        counts[blocks] = blockRecords;
+        blocks++;
+
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            file.write(buffer);
+        }
+        buffer.clear();
+        blockRecords = 0;
+    }
+
+    long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Writes the last block, the block index and the trailer.
+     */
+    void finish() throws IOException {
+        if (buffer.position() > 0) {
+            flush();
+        }
+
+        long indexOffset = file.position();
+        ByteBuffer buffer = this.buffer;
+        for (int i = 0; i < blocks; i++) {
+            if (buffer.remaining() < BlockFile.INDEX_ENTRY_SIZE) {
+                writeBuffer();
+            }
+            buffer.putLong(offsets[i]);
+            buffer.putInt(lengths[i]);
+            buffer.putInt(counts[i]);
+        }
+        if (sorted && recordCount > 0) {
+            writeRecord(firstRecord);
+            writeRecord(lastRecord);
+        }
+        if (buffer.remaining() < BlockFile.TRAILER_SIZE) {
+            writeBuffer();
+        }
+        buffer.putLong(indexOffset);
+        buffer.putInt(blocks);
+        buffer.putInt(sorted ? BlockFile.FLAG_SORTED : 0);
+        buffer.putLong(recordCount);
+        buffer.putLong(BlockFile.MAGIC);
+        writeBuffer();
+        if (sorted) {
+            file.force(true);
+        }
+    }
+
+    private void writeRecord(byte[] record) throws IOException {
+        ByteBuffer buffer = this.buffer;
+        if (buffer.remaining() < Integer.BYTES) {
+            writeBuffer();
+        }
+        buffer.putInt(record.length);
+        int offset = 0;
+        while (offset < record.length) {
+            if (!buffer.hasRemaining()) {
+                writeBuffer();
+            }
+            int length = Math.min(buffer.remaining(), record.length - offset);
+            buffer.put(record, offset, length);
+            offset += length;
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        ByteBuffer buffer = this.buffer;
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            file.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            file.close();
+        } finally {
+            Cleaner.clean(buffer);
+        }
+    }
+}
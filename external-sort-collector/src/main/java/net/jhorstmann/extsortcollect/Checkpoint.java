@@ -0,0 +1,359 @@
+package net.jhorstmann.extsortcollect;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent manifest of the chunks of a sort, so that a sort can be resumed after the process died.
+ * <p>
+ * Spill files are created in turn in the {@link ExternalSortCollectors.SpillStorage#getDirectories() directories} of
+ * the spill storage, or next to the manifest if it has none, as {@code <manifest>-<hash>.<n>.spill}, where the hash of
+ * the absolute manifest path keeps sorts with equally named manifests apart. They are not deleted on close. After
+ * each run the spill files are forced to the device and the manifest is replaced atomically, it lists the spill files
+ * with their committed length, the chunks and the number of input elements they contain. Records written after the
+ * last manifest are truncated when the checkpoint is opened again.
+ * <p>
+ * The manifest also stores a fingerprint of the parts of the configuration that determine the format and order of
+ * the chunks, a checkpoint is not resumed with a different configuration.
+ */
+class Checkpoint {
+    private static final Logger LOG = LoggerFactory.getLogger(ExternalSortCollectors.class);
+
+    private static final long MAGIC = 0x4558_5453_4D41_4E32L;
+
+    private final Path manifest;
+    private final String fingerprint;
+    private final List<Path> directories;
+    private final String spillPrefix;
+    // paths of all spill files that were created or restored and not yet deleted
+    private final Map<FileChannel, Path> paths;
+    private final List<FileChannel> files;
+    private final List<Chunk> chunks;
+    private long position;
+    private boolean complete;
+    private int nextFile;
+
+    private Checkpoint(Path manifest, String fingerprint, List<Path> directories) {
+        this.manifest = manifest;
+        this.fingerprint = fingerprint;
+        this.directories = directories.isEmpty() ? Collections.singletonList(manifest.getParent()) : directories;
+        this.spillPrefix = manifest.getFileName() + "-" + String.format("%08x", manifest.toString().hashCode());
+        this.paths = new HashMap<>();
+        this.files = new ArrayList<>();
+        this.chunks = new ArrayList<>();
+    }
+
+    /**
+     * Restores the chunks of an existing manifest, or starts an empty checkpoint if there is none.
+     */
+    static Checkpoint open(Path manifest, ExternalSortCollectors.Configuration<?> configuration) {
+        List<Path> directories = new ArrayList<>();
+        for (Path directory : configuration.getSpillStorage().getDirectories()) {
+            directories.add(directory.toAbsolutePath());
+        }
+        Checkpoint checkpoint = new Checkpoint(manifest.toAbsolutePath(), fingerprint(configuration), directories);
+        try {
+            try {
+                if (Files.exists(checkpoint.manifest)) {
+                    checkpoint.read();
+                }
+                checkpoint.deleteUnreferenced();
+            } catch (Throwable t) {
+                try {
+                    checkpoint.closeFiles();
+                } catch (Throwable t2) {
+                    t.addSuppressed(t2);
+                }
+                throw t;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Describes the serializer, comparator and chunk format of a configuration. The generated classes of lambdas do
+     * not identify them, all comparators built by {@code Comparator.comparing} share one, so lambdas are only accepted
+     * together with a checkpoint id.
+     */
+    static String fingerprint(ExternalSortCollectors.Configuration<?> configuration) {
+        String checkpointId = configuration.getCheckpointId();
+        if (checkpointId == null && (isLambda(configuration.getSerializer()) || isLambda(configuration.getComparator()))) {
+            throw new IllegalArgumentException("lambda serializers and comparators can not be identified in a checkpoint, a checkpoint id is required");
+        }
+        return "checkpointId=" + (checkpointId != null ? checkpointId : "none")
+                + ", serializer=" + typeName(configuration.getSerializer())
+                + ", keyPrefix=" + (configuration.getKeySerializer() != null)
+                + ", comparator=" + typeName(configuration.getComparator())
+                + ", distinct=" + configuration.isDistinct()
+                + ", blockCodec=" + typeName(configuration.getBlockCodec())
+                + ", indexInterval=" + configuration.getIndexInterval()
+                + ", maxSegmentSize=" + configuration.getMaxSegmentSize()
+                + ", maxRecordSize=" + configuration.getMaxRecordSize();
+    }
+
+    private static boolean isLambda(Object object) {
+        return object.getClass().isSynthetic() || object.getClass().getName().contains("$$Lambda");
+    }
+
+    /**
+     * Lambdas are named by the class that declares them, since the names of their generated classes change between
+     * runs.
+     */
+    private static String typeName(Object object) {
+        if (object == null) {
+            return "none";
+        }
+        String name = object.getClass().getName();
+        int lambda = name.indexOf("$$Lambda");
+        return lambda < 0 ? name : name.substring(0, lambda);
+    }
+
+    private void read() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifest)))) {
+            if (in.readLong() != MAGIC) {
+                throw new IllegalStateException("Not a checkpoint manifest: " + manifest);
+            }
+            String written = in.readUTF();
+            if (!written.equals(fingerprint)) {
+                throw new IllegalStateException("Checkpoint was written with a different configuration [" + written
+                        + "], can not resume with [" + fingerprint + "]");
+            }
+            this.position = in.readLong();
+            this.complete = in.readBoolean();
+
+            int fileCount = in.readInt();
+            for (int i = 0; i < fileCount; i++) {
+                Path path = Paths.get(in.readUTF());
+                long length = in.readLong();
+                FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                paths.put(file, path);
+                files.add(file);
+                // records of a run that was not finished before the process died
+                file.truncate(length);
+                file.position(length);
+            }
+
+            int chunkCount = in.readInt();
+            for (int i = 0; i < chunkCount; i++) {
+                FileChannel file = files.get(in.readInt());
+                long[] boundaries = readLongs(in);
+                long count = in.readLong();
+                int indexInterval = in.readInt();
+                long[] index = readLongs(in);
+                long uncompressedLength = in.readLong();
+                byte[] firstRecord = readBytes(in);
+                byte[] lastRecord = readBytes(in);
+                chunks.add(new Chunk(file, boundaries, count, indexInterval, index, uncompressedLength, firstRecord, lastRecord));
+            }
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Restored [{}] chunks of [{}] elements from [{}]", chunks.size(), position, manifest);
+        }
+    }
+
+    private static long[] readLongs(DataInputStream in) throws IOException {
+        long[] values = new long[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readLong();
+        }
+        return values;
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Number of input elements contained in the restored chunks.
+     */
+    long getPosition() {
+        return position;
+    }
+
+    /**
+     * True if the restored chunks contain the whole input, so the sort can continue with the merge.
+     */
+    boolean isComplete() {
+        return complete;
+    }
+
+    List<FileChannel> getFiles() {
+        return files;
+    }
+
+    List<Chunk> getChunks() {
+        return chunks;
+    }
+
+    FileChannel createSpillFile() throws IOException {
+        while (true) {
+            int n = nextFile++;
+            Path path = directories.get(n % directories.size()).resolve(spillPrefix + "." + n + ".spill");
+            try {
+                FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                paths.put(file, path);
+                return file;
+            } catch (FileAlreadyExistsException e) {
+                // left over from an earlier sort with the same manifest, try the next name
+            }
+        }
+    }
+
+    /**
+     * Replaces the manifest with the given chunks, which contain the first {@code position} input elements, and
+     * deletes spill files that are no longer referenced.
+     */
+    void write(List<Chunk> chunks, List<FileChannel> files, long position, boolean complete) throws IOException {
+        long t1 = System.currentTimeMillis();
+        for (FileChannel file : files) {
+            file.force(false);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(MAGIC);
+            out.writeUTF(fingerprint);
+            out.writeLong(position);
+            out.writeBoolean(complete);
+
+            out.writeInt(files.size());
+            for (FileChannel file : files) {
+                out.writeUTF(paths.get(file).toString());
+                out.writeLong(file.size());
+            }
+
+            out.writeInt(chunks.size());
+            for (Chunk chunk : chunks) {
+                out.writeInt(files.indexOf(chunk.getFile()));
+                int segments = chunk.getSegmentCount();
+                out.writeInt(segments + 1);
+                for (int i = 0; i < segments; i++) {
+                    out.writeLong(chunk.getSegmentOffset(i));
+                }
+                out.writeLong(chunk.getOffset() + chunk.getLength());
+                out.writeLong(chunk.getCount());
+                out.writeInt(chunk.getIndexInterval());
+                out.writeInt(chunk.getIndexSize());
+                for (int i = 0; i < chunk.getIndexSize(); i++) {
+                    out.writeLong(chunk.getIndexOffset(i));
+                }
+                out.writeLong(chunk.getUncompressedLength());
+                writeBytes(out, chunk.getFirstRecord());
+                writeBytes(out, chunk.getLastRecord());
+            }
+        }
+
+        Path temp = manifest.resolveSibling(manifest.getFileName() + ".tmp");
+        try (FileChannel file = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                file.write(buffer);
+            }
+            file.force(true);
+        }
+        Files.move(temp, manifest, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        this.files.clear();
+        this.files.addAll(files);
+        this.position = position;
+        this.complete = complete;
+        deleteUnreferenced();
+
+        if (LOG.isTraceEnabled()) {
+            long t2 = System.currentTimeMillis();
+            LOG.trace("Wrote checkpoint of [{}] chunks in [{}ms]", chunks.size(), t2 - t1);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Deletes spill files of this manifest that it does not reference, for example the source files of a finished
+     * merge pass or files of a run that was not finished.
+     */
+    private void deleteUnreferenced() throws IOException {
+        List<Path> referenced = new ArrayList<>();
+        for (FileChannel file : files) {
+            referenced.add(paths.get(file));
+        }
+        paths.values().retainAll(referenced);
+        for (Path directory : directories) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, spillPrefix + ".*.spill")) {
+                for (Path path : stream) {
+                    if (!referenced.contains(path)) {
+                        Files.deleteIfExists(path);
+                    }
+                }
+            }
+        }
+    }
+
+    private void closeFiles() throws IOException {
+        IOException failure = null;
+        for (FileChannel file : files) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Deletes the manifest and all spill files, after the sorted stream was consumed.
+     */
+    void delete() {
+        try {
+            Files.deleteIfExists(manifest);
+            for (Path path : paths.values()) {
+                Files.deleteIfExists(path);
+            }
+            paths.clear();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
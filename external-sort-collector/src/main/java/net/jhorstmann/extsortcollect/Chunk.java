@@ -0,0 +1,131 @@
+package net.jhorstmann.extsortcollect;
+
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A sorted run in one of the spill files, consisting of one or more consecutive segments that each start at a record
+ * boundary.
+ * <p>
+ * The sparse index contains the file offset of every {@code indexInterval}th record, starting with the first one.
+ * Chunks that are compressed in blocks have no index.
+ * <p>
+ * The first and last record are kept in serialized form, including their key prefix, as a zone map, so that chunks
+ * outside of a key range can be skipped without reading them.
+ */
+class Chunk {
+    static final long[] NO_INDEX = new long[0];
+
+    private final FileChannel file;
+    private final long[] boundaries;
+    private final long count;
+    private final int indexInterval;
+    private final long[] index;
+    private final long uncompressedLength;
+    private final byte[] firstRecord;
+    private final byte[] lastRecord;
+
+    Chunk(FileChannel file, long offset, long length, long count) {
+        this(file, new long[]{offset, offset + length}, count, 0, NO_INDEX, length, null, null);
+    }
+
+    Chunk(FileChannel file, long[] boundaries, long count, int indexInterval, long[] index, long uncompressedLength, byte[] firstRecord, byte[] lastRecord) {
+        this.file = file;
+        this.boundaries = boundaries;
+        this.count = count;
+        this.indexInterval = indexInterval;
+        this.index = index;
+        this.uncompressedLength = uncompressedLength;
+        this.firstRecord = firstRecord;
+        this.lastRecord = lastRecord;
+    }
+
+    FileChannel getFile() {
+        return file;
+    }
+
+    long getOffset() {
+        return boundaries[0];
+    }
+
+    long getLength() {
+        return boundaries[boundaries.length - 1] - boundaries[0];
+    }
+
+    /**
+     * Length of the records before block compression, equal to {@link #getLength()} for uncompressed chunks.
+     */
+    long getUncompressedLength() {
+        return uncompressedLength;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    int getSegmentCount() {
+        return boundaries.length - 1;
+    }
+
+    long getSegmentOffset(int segment) {
+        return boundaries[segment];
+    }
+
+    long getSegmentLength(int segment) {
+        return boundaries[segment + 1] - boundaries[segment];
+    }
+
+    /**
+     * Returns the segment containing the record starting at the given file offset.
+     */
+    int findSegment(long offset) {
+        int idx = Arrays.binarySearch(boundaries, 0, boundaries.length - 1, offset);
+        return idx >= 0 ? idx : -idx - 2;
+    }
+
+    /**
+     * Returns the serialized first record, or {@code null} if the chunk has no zone map.
+     */
+    byte[] getFirstRecord() {
+        return firstRecord;
+    }
+
+    byte[] getLastRecord() {
+        return lastRecord;
+    }
+
+    int getIndexInterval() {
+        return indexInterval;
+    }
+
+    int getIndexSize() {
+        return index.length;
+    }
+
+    long getIndexOffset(int entry) {
+        return index[entry];
+    }
+
+    /**
+     * Returns this chunk as if it had been copied to {@code offset} in {@code file}.
+     */
+    Chunk moveTo(FileChannel file, long offset) {
+        long delta = offset - getOffset();
+        long[] boundaries = this.boundaries.clone();
+        for (int i = 0; i < boundaries.length; i++) {
+            boundaries[i] += delta;
+        }
+        long[] index = this.index.clone();
+        for (int i = 0; i < index.length; i++) {
+            index[i] += delta;
+        }
+        return new Chunk(file, boundaries, count, indexInterval, index, uncompressedLength, firstRecord, lastRecord);
+    }
+
+    @Override
+    public String toString() {
+        return boundaries.length == 2
+                ? String.format("[%d, %d)", getOffset(), getOffset() + getLength())
+                : String.format("[%d, %d) %s", getOffset(), getOffset() + getLength(), Arrays.toString(boundaries));
+    }
+}
@@ -1,76 +1,163 @@
 package net.jhorstmann.extsortcollect;
 
 import java.io.Closeable;
-import java.util.Comparator;
-import java.util.PriorityQueue;
-import java.util.Spliterator;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.Consumer;
 
 class ChunkMergeSpliterator<T> implements Spliterator<T>, Closeable {
+    private static final long MIN_SPLIT_SIZE = 1024;
+
     private final Comparator<T> comparator;
-    private final PriorityQueue<ReadableChunk<T>> chunks;
-    private final long size;
+    private final Collection<MergeQueue<T>> queues;
+    private final boolean sized;
+    private MergeQueue<T> chunks;
+    private long size;
+
+    ChunkMergeSpliterator(Comparator<T> comparator, MergeQueue<T> chunks, long size) {
+        this(comparator, chunks, size, true);
+    }
+
+    /**
+     * Creates a spliterator whose {@code size} is only an upper bound if {@code sized} is false, which is the case
+     * when chunks end at a key instead of a known record.
+     */
+    ChunkMergeSpliterator(Comparator<T> comparator, MergeQueue<T> chunks, long size, boolean sized) {
+        this(comparator, chunks, size, sized, new ConcurrentLinkedQueue<>());
+    }
 
-    ChunkMergeSpliterator(Comparator<T> comparator, PriorityQueue<ReadableChunk<T>> chunks, long size) {
+    private ChunkMergeSpliterator(Comparator<T> comparator, MergeQueue<T> chunks, long size, boolean sized, Collection<MergeQueue<T>> queues) {
         this.comparator = comparator;
         this.chunks = chunks;
         this.size = size;
+        this.sized = sized;
+        this.queues = queues;
+        queues.add(chunks);
     }
 
+    /**
+     * Closes the chunks of this spliterator and of all spliterators that were split from it.
+     */
     @Override
     public void close() {
-        for (ReadableChunk<T> chunk : chunks) {
-            chunk.close();
+        for (MergeQueue<T> queue : queues) {
+            queue.close();
         }
-        chunks.clear();
+        queues.clear();
     }
 
     @Override
     public boolean tryAdvance(Consumer<? super T> action) {
-        PriorityQueue<ReadableChunk<T>> chunks = this.chunks;
-        ReadableChunk<T> chunk = chunks.poll();
+        MergeQueue<T> chunks = this.chunks;
+        ReadableChunk<T> chunk = chunks.peek();
 
         if (chunk == null) {
             return false;
         }
 
         T data = chunk.next();
+        chunks.update();
+        size--;
         action.accept(data);
 
-        if (chunk.hasNext()) {
-            chunks.offer(chunk);
-        } else {
-            chunk.close();
-        }
-
         return true;
     }
 
     @Override
     public void forEachRemaining(Consumer<? super T> action) {
-        PriorityQueue<ReadableChunk<T>> chunks = this.chunks;
+        MergeQueue<T> chunks = this.chunks;
         ReadableChunk<T> chunk;
 
-        while (null != (chunk = chunks.poll())) {
+        while (null != (chunk = chunks.peek())) {
             T data = chunk.next();
+            chunks.update();
             action.accept(data);
-
-            if (chunk.hasNext()) {
-                chunks.offer(chunk);
-            } else {
-                chunk.close();
-            }
         }
+        size = 0;
     }
 
+    /**
+     * Splits off the records that are less than a splitter key. The splitter is the weighted median of samples
+     * from the sparse index of each chunk, every chunk is then split at the first record not less than the
+     * splitter.
+     */
     @Override
     public Spliterator<T> trySplit() {
-        return null;
+        if (size < MIN_SPLIT_SIZE) {
+            return null;
+        }
+
+        List<ReadableChunk<T>> chunks = this.chunks.chunks();
+        T splitter = selectSplitter(chunks);
+        if (splitter == null) {
+            return null;
+        }
+
+        ReadableChunk.Position[] positions = new ReadableChunk.Position[chunks.size()];
+        long remaining = 0;
+        long prefixSize = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            ReadableChunk<T> chunk = chunks.get(i);
+            positions[i] = chunk.lowerBound(splitter);
+            remaining += chunk.remaining();
+            prefixSize += chunk.countBefore(positions[i]);
+        }
+        if (prefixSize == 0 || prefixSize == remaining) {
+            return null;
+        }
+
+        List<ReadableChunk<T>> prefixes = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            ReadableChunk<T> chunk = chunks.get(i);
+            if (chunk.countBefore(positions[i]) > 0) {
+                prefixes.add(chunk.splitAt(positions[i]));
+            }
+        }
+
+        queues.remove(this.chunks);
+        this.chunks = new LoserTree<>(chunks);
+        queues.add(this.chunks);
+        this.size = remaining - prefixSize;
+
+        return new ChunkMergeSpliterator<>(comparator, new LoserTree<>(prefixes), prefixSize, sized, queues);
+    }
+
+    private T selectSplitter(List<ReadableChunk<T>> chunks) {
+        List<T> samples = new ArrayList<>(chunks.size());
+        List<Long> weights = new ArrayList<>(chunks.size());
+        long totalWeight = 0;
+        for (ReadableChunk<T> chunk : chunks) {
+            T sample = chunk.sample();
+            if (sample != null) {
+                samples.add(sample);
+                weights.add(chunk.remaining());
+                totalWeight += chunk.remaining();
+            }
+        }
+        if (samples.isEmpty()) {
+            return null;
+        }
+
+        Integer[] order = new Integer[samples.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> comparator.compare(samples.get(a), samples.get(b)));
+
+        long weight = 0;
+        for (int i : order) {
+            weight += weights.get(i);
+            if (2 * weight >= totalWeight) {
+                return samples.get(i);
+            }
+        }
+        return samples.get(order[order.length - 1]);
     }
 
     @Override
     public int characteristics() {
-        return Spliterator.IMMUTABLE | Spliterator.NONNULL | Spliterator.SORTED | Spliterator.ORDERED | Spliterator.SIZED;
+        int characteristics = Spliterator.IMMUTABLE | Spliterator.NONNULL | Spliterator.SORTED | Spliterator.ORDERED;
+        return sized ? characteristics | Spliterator.SIZED | Spliterator.SUBSIZED : characteristics;
     }
 
     @Override
@@ -85,6 +172,6 @@ class ChunkMergeSpliterator<T> implements Spliterator<T>, Closeable {
 
     @Override
     public long getExactSizeIfKnown() {
-        return size;
+        return sized ? size : -1;
     }
 }
@@ -0,0 +1,247 @@
+package net.jhorstmann.extsortcollect;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Writes sorted records as one chunk to the end of a file, each record is preceded by its key prefix when a
+ * {@link ExternalSortCollectors.KeySerializer} is configured. Chunks are divided into record aligned segments of at
+ * most {@code maxSegmentSize} bytes, so that each segment can be mapped independently regardless of the chunk size.
+ * <p>
+ * With a {@link ExternalSortCollectors.BlockCodec}, each flush of the write buffer is compressed into one frame,
+ * consisting of the stored length and the uncompressed length followed by the stored bytes. Blocks that do not get
+ * smaller are stored uncompressed, which is signalled by equal lengths. Segments then start at frame boundaries.
+ * <p>
+ * Without a codec, records are serialized directly into the direct buffer that is written to the file, so each
+ * spilled byte is only copied once before the write.
+ */
+class ChunkWriter<T> implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(ExternalSortCollectors.class);
+    static final int FRAME_HEADER_SIZE = 2 * Integer.BYTES;
+
+    private final ExternalSortCollectors.Serializer<T> serializer;
+    private final ExternalSortCollectors.KeySerializer<T> keySerializer;
+    private final int maxRecordSize;
+    private final int writeBufferSize;
+    private final long maxSegmentSize;
+    private final int indexInterval;
+    private final ExternalSortCollectors.BlockCodec codec;
+    private ByteBuffer buffer;
+    private ByteBuffer directBuffer;
+    private byte[] compressed;
+    private long uncompressed;
+    private FileChannel file;
+    private long offset;
+    private long flushed;
+    private long[] boundaries;
+    private int segments;
+    private long[] index;
+    private int indexSize;
+    private long count;
+    private int recordStart;
+    // serialized first and last record of the chunk as its zone map
+    private byte[] firstRecord;
+    private byte[] lastRecord;
+    private int blocks;
+    private long t1;
+
+    ChunkWriter(ExternalSortCollectors.Serializer<T> serializer, ExternalSortCollectors.KeySerializer<T> keySerializer, int maxRecordSize, int writeBufferSize, long maxSegmentSize, int indexInterval, ExternalSortCollectors.BlockCodec codec) {
+        this.serializer = serializer;
+        this.keySerializer = keySerializer;
+        // records are preceded by their key prefix
+        this.maxRecordSize = keySerializer == null ? maxRecordSize : maxRecordSize + Long.BYTES;
+        this.writeBufferSize = writeBufferSize;
+        this.maxSegmentSize = maxSegmentSize;
+        this.indexInterval = indexInterval;
+        this.codec = codec;
+        this.boundaries = new long[4];
+        this.index = new long[16];
+    }
+
+    void start(FileChannel file) throws IOException {
+        if (buffer == null) {
+            if (codec == null) {
+                this.directBuffer = ByteBuffer.allocateDirect(writeBufferSize);
+                this.buffer = directBuffer;
+            } else {
+                // codecs work on arrays, so records are collected in a heap buffer and the frame is copied
+                this.buffer = ByteBuffer.allocate(writeBufferSize);
+                this.compressed = new byte[codec.maxCompressedLength(writeBufferSize)];
+                this.directBuffer = ByteBuffer.allocateDirect(FRAME_HEADER_SIZE + compressed.length);
+            }
+        }
+        this.file = file;
+        this.offset = file.position();
+        this.flushed = 0;
+        this.uncompressed = 0;
+        this.boundaries[0] = offset;
+        this.segments = 1;
+        this.indexSize = 0;
+        this.count = 0;
+        this.firstRecord = null;
+        this.lastRecord = null;
+        this.blocks = 0;
+        this.t1 = System.currentTimeMillis();
+    }
+
+    void write(T elem) throws IOException {
+        if (keySerializer != null) {
+            write(keySerializer.keyPrefix(elem), elem);
+        } else {
+            write(0L, elem);
+        }
+    }
+
+    void write(long key, T elem) throws IOException {
+        ByteBuffer buffer = startRecord();
+        if (keySerializer != null) {
+            buffer.putLong(key);
+        }
+        serializer.write(buffer, elem);
+        finishRecord(buffer);
+    }
+
+    /**
+     * Writes a record that is already serialized in the remaining bytes of {@code record}.
+     */
+    void write(long key, ByteBuffer record) throws IOException {
+        ByteBuffer buffer = startRecord();
+        if (keySerializer != null) {
+            buffer.putLong(key);
+        }
+        buffer.put(record);
+        finishRecord(buffer);
+    }
+
+    private ByteBuffer startRecord() {
+        ByteBuffer buffer = this.buffer;
+        this.recordStart = buffer.position();
+        if (codec != null) {
+            count++;
+            return buffer;
+        }
+
+        long position = offset + flushed + buffer.position();
+        if (position - boundaries[segments - 1] + maxRecordSize > maxSegmentSize) {
+            if (segments == boundaries.length) {
+                boundaries = Arrays.copyOf(boundaries, segments * 2);
+            }
+            boundaries[segments++] = position;
+        }
+        if (count % indexInterval == 0) {
+            if (indexSize == index.length) {
+                index = Arrays.copyOf(index, indexSize * 2);
+            }
+            index[indexSize++] = position;
+        }
+        count++;
+
+        return buffer;
+    }
+
+    private void finishRecord(ByteBuffer buffer) throws IOException {
+        if (count == 1) {
+            this.firstRecord = copyRecord(buffer, buffer.position());
+        }
+        if (buffer.remaining() < maxRecordSize) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        ByteBuffer buffer = this.buffer;
+        ByteBuffer directBuffer = this.directBuffer;
+
+        buffer.flip();
+        // the buffer always ends with a complete record, which is the last one written so far
+        this.lastRecord = copyRecord(buffer, buffer.limit());
+
+        if (codec != null) {
+            directBuffer.clear();
+            compressFrame(buffer, directBuffer);
+            directBuffer.flip();
+        }
+
+        int length = directBuffer.limit();
+        while (directBuffer.hasRemaining()) {
+            file.write(directBuffer);
+        }
+        flushed += length;
+        uncompressed += buffer.limit();
+
+        buffer.clear();
+        blocks++;
+    }
+
+    private byte[] copyRecord(ByteBuffer buffer, int end) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(end);
+        view.position(recordStart);
+        byte[] record = new byte[view.remaining()];
+        view.get(record);
+        return record;
+    }
+
+    private void compressFrame(ByteBuffer buffer, ByteBuffer frame) {
+        int length = buffer.limit();
+        int compressedLength = codec.compress(buffer.array(), 0, length, compressed, 0);
+
+        long position = offset + flushed;
+        long frameLength = FRAME_HEADER_SIZE + Math.min(length, compressedLength);
+        if (position - boundaries[segments - 1] + frameLength > maxSegmentSize) {
+            if (segments == boundaries.length) {
+                boundaries = Arrays.copyOf(boundaries, segments * 2);
+            }
+            boundaries[segments++] = position;
+        }
+
+        if (compressedLength < length) {
+            frame.putInt(compressedLength);
+            frame.putInt(length);
+            frame.put(compressed, 0, compressedLength);
+        } else {
+            frame.putInt(length);
+            frame.putInt(length);
+            frame.put(buffer);
+        }
+    }
+
+    Chunk finish() throws IOException {
+        // write remaining data to file
+        if (buffer.position() > 0) {
+            flush();
+        }
+        FileChannel file = this.file;
+        this.file = null;
+
+        if (LOG.isTraceEnabled()) {
+            long t2 = System.currentTimeMillis();
+            LOG.trace("Wrote chunk with [{}] blocks in [{}] segments in [{}ms]", blocks, segments, t2 - t1);
+        }
+
+        long[] boundaries = Arrays.copyOf(this.boundaries, segments + 1);
+        boundaries[segments] = offset + flushed;
+
+        if (codec != null) {
+            return new Chunk(file, boundaries, count, 0, Chunk.NO_INDEX, uncompressed, firstRecord, lastRecord);
+        }
+        return new Chunk(file, boundaries, count, indexInterval, Arrays.copyOf(index, indexSize), uncompressed, firstRecord, lastRecord);
+    }
+
+    @Override
+    public void close() {
+        this.buffer = null;
+
+        ByteBuffer directBuffer = this.directBuffer;
+        if (directBuffer != null) {
+            Cleaner.clean(directBuffer);
+            this.directBuffer = null;
+        }
+    }
+}
@@ -82,13 +82,17 @@ class Cleaner implements Closeable {
         return this;
     }
 
+    /**
+     * Releases one reference, the buffer is unmapped once the last reference is released.
+     */
     @Override
     public void close() {
-        if (buffer != null) {
-            if (referenceCount.decrementAndGet() == 0) {
+        if (referenceCount.decrementAndGet() == 0) {
+            ByteBuffer buffer = this.buffer;
+            if (buffer != null) {
                 clean(buffer);
+                this.buffer = null;
             }
-            buffer = null;
         }
     }
 
@@ -0,0 +1,63 @@
+package net.jhorstmann.extsortcollect;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Block codec using {@link Deflater} without zlib header. Each thread uses its own deflater and inflater, so that
+ * one instance can be shared by all accumulators and spill threads.
+ */
+class DeflateBlockCodec implements ExternalSortCollectors.BlockCodec {
+    private final ThreadLocal<Deflater> deflater;
+    private final ThreadLocal<Inflater> inflater;
+
+    DeflateBlockCodec(int level) {
+        this.deflater = ThreadLocal.withInitial(() -> new Deflater(level, true));
+        this.inflater = ThreadLocal.withInitial(() -> new Inflater(true));
+    }
+
+    @Override
+    public int maxCompressedLength(int length) {
+        // bound for stored blocks plus some slack for the final block
+        return length + (length >> 12) + (length >> 14) + (length >> 25) + 64;
+    }
+
+    @Override
+    public int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+        Deflater deflater = this.deflater.get();
+        deflater.reset();
+        deflater.setInput(src, srcOffset, length);
+        deflater.finish();
+
+        int capacity = maxCompressedLength(length);
+        int written = 0;
+        while (!deflater.finished()) {
+            int n = deflater.deflate(dst, dstOffset + written, capacity - written);
+            if (n == 0 && written == capacity) {
+                throw new IllegalStateException("Compressed block exceeds its maximum length");
+            }
+            written += n;
+        }
+        return written;
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset, int uncompressedLength) {
+        Inflater inflater = this.inflater.get();
+        inflater.reset();
+        inflater.setInput(src, srcOffset, length);
+        try {
+            int read = 0;
+            while (read < uncompressedLength) {
+                int n = inflater.inflate(dst, dstOffset + read, uncompressedLength - read);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IllegalStateException("Corrupt compressed block");
+                }
+                read += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt compressed block", e);
+        }
+    }
+}
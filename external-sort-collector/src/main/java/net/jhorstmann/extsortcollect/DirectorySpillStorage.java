@@ -0,0 +1,120 @@
+package net.jhorstmann.extsortcollect;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates spill files in a list of directories, either in turn or in the directory with the most usable space.
+ * Each accumulator keeps one spill file in every directory and writes its runs to them in turn, so that the spill
+ * bandwidth scales with the number of devices behind the directories.
+ */
+class DirectorySpillStorage implements ExternalSortCollectors.SpillStorage {
+    private final Path[] directories;
+    private final boolean byFreeSpace;
+    private final AtomicInteger next;
+
+    DirectorySpillStorage(List<Path> directories, boolean byFreeSpace) {
+        if (directories.isEmpty()) {
+            throw new IllegalArgumentException("spill storage needs at least one directory");
+        }
+        this.directories = directories.toArray(new Path[0]);
+        this.byFreeSpace = byFreeSpace;
+        this.next = new AtomicInteger();
+    }
+
+    @Override
+    public FileChannel createSpillFile() throws IOException {
+        return createSpillFile(selectDirectory());
+    }
+
+    /**
+     * Creates one spill file in each directory, in the order of {@link #stripeDirectories()}.
+     */
+    @Override
+    public FileChannel[] createStripes() throws IOException {
+        Path[] ordered = stripeDirectories();
+        FileChannel[] stripes = new FileChannel[ordered.length];
+        try {
+            for (int i = 0; i < ordered.length; i++) {
+                stripes[i] = createSpillFile(ordered[i]);
+            }
+        } catch (Throwable t) {
+            for (FileChannel stripe : stripes) {
+                if (stripe != null) {
+                    try {
+                        stripe.close();
+                    } catch (Throwable t2) {
+                        t.addSuppressed(t2);
+                    }
+                }
+            }
+            throw t;
+        }
+        return stripes;
+    }
+
+    /**
+     * All directories, in turn starting at the next one, so that concurrent accumulators do not write their first
+     * runs to the same device, or by descending usable space.
+     */
+    Path[] stripeDirectories() throws IOException {
+        Path[] ordered = new Path[directories.length];
+        if (byFreeSpace) {
+            long[] usable = new long[directories.length];
+            Integer[] order = new Integer[directories.length];
+            for (int i = 0; i < directories.length; i++) {
+                usable[i] = Files.getFileStore(directories[i]).getUsableSpace();
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.<Integer>comparingLong(i -> usable[i]).reversed());
+            for (int i = 0; i < ordered.length; i++) {
+                ordered[i] = directories[order[i]];
+            }
+        } else {
+            int first = next.getAndIncrement();
+            for (int i = 0; i < ordered.length; i++) {
+                ordered[i] = directories[Math.floorMod(first + i, directories.length)];
+            }
+        }
+        return ordered;
+    }
+
+    private static FileChannel createSpillFile(Path directory) throws IOException {
+        Path tempFile = Files.createTempFile(directory, "extsort_", ".tmp");
+        return FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    private Path selectDirectory() throws IOException {
+        if (!byFreeSpace) {
+            return directories[Math.floorMod(next.getAndIncrement(), directories.length)];
+        }
+        Path selected = directories[0];
+        long usable = Files.getFileStore(selected).getUsableSpace();
+        for (int i = 1; i < directories.length; i++) {
+            long space = Files.getFileStore(directories[i]).getUsableSpace();
+            if (space > usable) {
+                selected = directories[i];
+                usable = space;
+            }
+        }
+        return selected;
+    }
+
+    @Override
+    public int getStripeCount() {
+        return directories.length;
+    }
+
+    @Override
+    public List<Path> getDirectories() {
+        return Collections.unmodifiableList(Arrays.asList(directories));
+    }
+}
@@ -1,14 +1,32 @@
 package net.jhorstmann.extsortcollect;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.function.ToIntBiFunction;
 import java.util.stream.Collector;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 public class ExternalSortCollectors {
+    static final int DEFAULT_PRIMITIVE_SORT_MAX_ITEMS = 1024 * 1024;
+    static final int DEFAULT_PRIMITIVE_WRITE_BUFFER_SIZE = 64 * 1024;
 
 
     public static <T> ConfigurationBuilder<T> configuration(Serializer<T> serializer) {
@@ -28,32 +46,349 @@ public class ExternalSortCollectors {
         return Collector.of(supplier(configuration), Accumulator::add, Accumulator::combine, Accumulator::finish, Collector.Characteristics.UNORDERED);
     }
 
+    /**
+     * Sorts like {@link #externalSort(Configuration)}, but returns a handle to the sorted result instead of a single
+     * stream. The handle has to be closed to delete the spill files.
+     */
+    public static <T> Collector<T, ?, SortedResult<T>> externalSortResult(Configuration<T> configuration) {
+        return Collector.of(supplier(configuration), Accumulator::add, Accumulator::combine, Accumulator::finishResult, Collector.Characteristics.UNORDERED);
+    }
+
+    /**
+     * Sorts and returns only the least {@code limit} elements, like {@code externalSort(configuration)} followed by
+     * {@code limit(limit)}. For {@code skip(n).limit(m)} use a limit of {@code n + m}. If the elements fit into the
+     * internal sort buffer they are kept in a bounded heap without spilling, otherwise runs and merge passes are pruned
+     * to the first {@code limit} records.
+     */
+    public static <T> Collector<T, ?, Stream<T>> topK(Configuration<T> configuration, long limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+        return Collector.of(() -> new Accumulator<>(configuration, limit), Accumulator::add, Accumulator::combine, Accumulator::finish, Collector.Characteristics.UNORDERED);
+    }
+
+    /**
+     * Sorts and combines elements that compare equal with {@code reducer}, like a combiner of a map reduce job. The
+     * reducer is applied to neighbouring equal elements after each in-memory sort, so runs are spilled with one record
+     * per key, and again during merge passes and the final merge. It has to be associative and return an element that
+     * compares equal to its arguments. Can not be combined with an off-heap buffer or replacement selection.
+     */
+    public static <T> Collector<T, ?, Stream<T>> externalSortReduce(Configuration<T> configuration, BinaryOperator<T> reducer) {
+        Objects.requireNonNull(reducer);
+        if (configuration.getOffHeapBufferSize() > 0 || configuration.isReplacementSelection()) {
+            throw new IllegalArgumentException("reducer can not be combined with an off-heap buffer or replacement selection");
+        }
+        return Collector.of(() -> new Accumulator<>(configuration, Long.MAX_VALUE, reducer), Accumulator::add, Accumulator::combine, Accumulator::finish, Collector.Characteristics.UNORDERED);
+    }
+
+    /**
+     * Joins two streams by key after sorting both externally. The configurations have to order the elements by the
+     * key that {@code keyComparator} compares. Elements of {@code streamB} with equal keys are buffered in memory, the
+     * returned stream is sequential and has to be closed to delete the spill files of both sides.
+     */
+    public static <A, B, R> Stream<R> mergeJoin(Configuration<A> configA, Stream<A> streamA,
+                                                Configuration<B> configB, Stream<B> streamB,
+                                                ToIntBiFunction<? super A, ? super B> keyComparator,
+                                                BiFunction<? super A, ? super B, ? extends R> joiner) {
+        return mergeJoin(configA, streamA, configB, streamB, keyComparator, joiner, false);
+    }
+
+    /**
+     * Joins like {@link #mergeJoin}, but also returns elements of {@code streamA} without a matching element in
+     * {@code streamB}, which are passed to {@code joiner} together with {@code null}.
+     */
+    public static <A, B, R> Stream<R> leftMergeJoin(Configuration<A> configA, Stream<A> streamA,
+                                                    Configuration<B> configB, Stream<B> streamB,
+                                                    ToIntBiFunction<? super A, ? super B> keyComparator,
+                                                    BiFunction<? super A, ? super B, ? extends R> joiner) {
+        return mergeJoin(configA, streamA, configB, streamB, keyComparator, joiner, true);
+    }
+
+    private static <A, B, R> Stream<R> mergeJoin(Configuration<A> configA, Stream<A> streamA,
+                                                 Configuration<B> configB, Stream<B> streamB,
+                                                 ToIntBiFunction<? super A, ? super B> keyComparator,
+                                                 BiFunction<? super A, ? super B, ? extends R> joiner,
+                                                 boolean outer) {
+        Stream<A> sortedA = streamA.collect(externalSort(configA));
+        Stream<B> sortedB;
+        try {
+            sortedB = streamB.collect(externalSort(configB));
+        } catch (Throwable t) {
+            try {
+                sortedA.close();
+            } catch (Throwable t2) {
+                t.addSuppressed(t2);
+            }
+            throw t;
+        }
+        MergeJoinSpliterator<A, B, R> spliterator = new MergeJoinSpliterator<>(sortedA.spliterator(), sortedB.spliterator(),
+                keyComparator, joiner, outer);
+        return StreamSupport.stream(spliterator, false)
+                .onClose(sortedA::close)
+                .onClose(sortedB::close);
+    }
+
+    /**
+     * Groups like {@link java.util.stream.Collectors#groupingBy(Function, Collector)} without keeping all elements in
+     * memory. When the buffer is full, its elements are hash partitioned by key into the spill file. The groups are then
+     * built one partition at a time, partitions that do not fit into the buffer are partitioned again. The returned
+     * stream contains one entry per key in no particular order and has to be closed to delete the spill file.
+     */
+    public static <T, K, A, D> Collector<T, ?, Stream<Map.Entry<K, D>>> externalGroupingBy(Configuration<T> configuration,
+                                                                                         Function<? super T, ? extends K> classifier,
+                                                                                         Collector<? super T, A, D> downstream) {
+        return Collector.of(() -> new GroupingAccumulator<T, K, A, D>(configuration, classifier, downstream), GroupingAccumulator::add, GroupingAccumulator::combine, GroupingAccumulator::finish, Collector.Characteristics.UNORDERED);
+    }
+
+    public static <T, K, A, D> Collector<T, ?, Stream<Map.Entry<K, D>>> externalGroupingBy(Serializer<T> serializer,
+                                                                                         Function<? super T, ? extends K> classifier,
+                                                                                         Collector<? super T, A, D> downstream) {
+        return externalGroupingBy(configuration(serializer).build(), classifier, downstream);
+    }
+
+    /**
+     * Sorts a sequential stream like {@link #externalSort(Configuration)}, but records the sorted runs in a manifest
+     * so that the sort can be resumed if the process dies. Spill files are created in the directories of the configured
+     * spill storage, which therefore have to survive a restart, or next to the manifest if the storage has no
+     * directories. After each run, the spill files are forced to disk and the manifest is replaced. A manifest written
+     * with a different serializer, comparator, checkpoint id or chunk format is rejected. A serializer or comparator
+     * that is a lambda or method reference requires a {@link ConfigurationBuilder#withCheckpointId(String) checkpoint
+     * id}.
+     * <p>
+     * If the manifest exists, the runs it lists are kept and the elements they contain are skipped from
+     * {@code stream}, which therefore has to produce the same elements in the same order as the first attempt. If all
+     * runs were written before, the stream is not consumed at all and the sort continues with the merge. The manifest
+     * and the spill files are deleted when the sorted stream is closed. Can not be combined with replacement selection
+     * or pipelined sorting.
+     */
+    public static <T> Stream<T> externalSortWithCheckpoint(Configuration<T> configuration, Stream<T> stream, Path manifest) {
+        if (configuration.isReplacementSelection() || configuration.getPipelinedBuffers() > 0) {
+            throw new IllegalArgumentException("checkpoints can not be combined with replacement selection or pipelined sort");
+        }
+        Checkpoint checkpoint = Checkpoint.open(manifest, configuration);
+        Accumulator<T> accumulator = new Accumulator<>(configuration, checkpoint);
+        if (!checkpoint.isComplete()) {
+            try {
+                stream.sequential()
+                        .skip(checkpoint.getPosition())
+                        .forEachOrdered(accumulator::add);
+            } catch (Throwable t) {
+                // the spill files and the manifest are kept for the next attempt
+                try {
+                    accumulator.close();
+                } catch (Throwable t2) {
+                    t.addSuppressed(t2);
+                }
+                throw t;
+            }
+        }
+        return accumulator.finish();
+    }
+
+    public static IntStream externalSortInts(IntStream stream) {
+        return externalSortInts(stream, DEFAULT_PRIMITIVE_SORT_MAX_ITEMS);
+    }
+
+    /**
+     * Sorts the values of a stream without boxing, spilling sorted runs of {@code internalSortMaxItems} values to
+     * a temporary file.
+     */
+    public static IntStream externalSortInts(IntStream stream, int internalSortMaxItems) {
+        return externalSortInts(stream, internalSortMaxItems, SpillStorage.tempDirectory());
+    }
+
+    public static IntStream externalSortInts(IntStream stream, int internalSortMaxItems, SpillStorage spillStorage) {
+        checkPrimitiveSortMaxItems(internalSortMaxItems);
+        return stream.collect(() -> new PrimitiveAccumulator(Integer.BYTES, internalSortMaxItems, DEFAULT_PRIMITIVE_WRITE_BUFFER_SIZE, spillStorage),
+                PrimitiveAccumulator::add, PrimitiveAccumulator::combine)
+                .finish()
+                .mapToInt(value -> (int) value);
+    }
+
+    public static LongStream externalSortLongs(LongStream stream) {
+        return externalSortLongs(stream, DEFAULT_PRIMITIVE_SORT_MAX_ITEMS);
+    }
+
+    public static LongStream externalSortLongs(LongStream stream, int internalSortMaxItems) {
+        return externalSortLongs(stream, internalSortMaxItems, SpillStorage.tempDirectory());
+    }
+
+    public static LongStream externalSortLongs(LongStream stream, int internalSortMaxItems, SpillStorage spillStorage) {
+        checkPrimitiveSortMaxItems(internalSortMaxItems);
+        return stream.collect(() -> new PrimitiveAccumulator(Long.BYTES, internalSortMaxItems, DEFAULT_PRIMITIVE_WRITE_BUFFER_SIZE, spillStorage),
+                PrimitiveAccumulator::add, PrimitiveAccumulator::combine)
+                .finish();
+    }
+
+    public static DoubleStream externalSortDoubles(DoubleStream stream) {
+        return externalSortDoubles(stream, DEFAULT_PRIMITIVE_SORT_MAX_ITEMS);
+    }
+
+    /**
+     * Sorts doubles in the order of {@link Double#compare(double, double)}, like {@link DoubleStream#sorted()}.
+     */
+    public static DoubleStream externalSortDoubles(DoubleStream stream, int internalSortMaxItems) {
+        return externalSortDoubles(stream, internalSortMaxItems, SpillStorage.tempDirectory());
+    }
+
+    public static DoubleStream externalSortDoubles(DoubleStream stream, int internalSortMaxItems, SpillStorage spillStorage) {
+        checkPrimitiveSortMaxItems(internalSortMaxItems);
+        return stream.collect(() -> new PrimitiveAccumulator(Long.BYTES, internalSortMaxItems, DEFAULT_PRIMITIVE_WRITE_BUFFER_SIZE, spillStorage),
+                (acc, value) -> acc.add(sortableBits(value)), PrimitiveAccumulator::combine)
+                .finish()
+                .mapToDouble(bits -> Double.longBitsToDouble(sortableBits(bits)));
+    }
+
+    /**
+     * Flips the non-sign bits of negative doubles so that the bits compare as signed longs like
+     * {@link Double#compare(double, double)}. The transformation is its own inverse.
+     */
+    private static long sortableBits(double value) {
+        return sortableBits(Double.doubleToLongBits(value));
+    }
+
+    private static long sortableBits(long bits) {
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    private static void checkPrimitiveSortMaxItems(int internalSortMaxItems) {
+        if (internalSortMaxItems <= 0 || internalSortMaxItems > ConfigurationBuilder.MAX_INTERNAL_SORT_ITEMS) {
+            throw new IllegalArgumentException("invalid number of items for internal sort: " + internalSortMaxItems);
+        }
+    }
+
+    /**
+     * Reads the records of a file, either written by {@link #write(Configuration, Stream, Path)} or containing only
+     * serialized records. Files in the block format can be split for parallel processing.
+     */
     public static <T> Stream<T> stream(Configuration<T> configuration, Path path) {
-        FileSpliterator<T> spliterator = new FileSpliterator<>(path,
-                configuration.getSerializer(),
-                configuration.getMaxRecordSize(),
-                configuration.getWriteBufferSize());
+        return stream(configuration, path, false);
+    }
+
+    public static <T> Stream<T> sorted(Configuration<T> configuration, Path path) {
+        try (Stream<T> stream = stream(configuration, path, true)) {
+            return stream.collect(externalSort(configuration));
+        }
+    }
+
+    /**
+     * Writes the records of a stream to a file in a block format that contains an index of record aligned blocks.
+     *
+     * @return the number of records written
+     */
+    public static <T> long write(Configuration<T> configuration, Stream<T> stream, Path path) {
+        return write(configuration, stream, path, false);
+    }
+
+    /**
+     * Sorts a stream and writes it to a file in the block format, with a footer that holds the first and last record.
+     * The file is forced to the storage device before returning, so it can be read with
+     * {@link #open(Configuration, Path)} any number of times without sorting again.
+     *
+     * @return the number of records written
+     */
+    public static <T> long sortTo(Configuration<T> configuration, Stream<T> stream, Path path) {
+        try (Stream<T> sorted = stream.collect(externalSort(configuration))) {
+            return write(configuration, sorted, path, true);
+        }
+    }
+
+    /**
+     * Reads a file written by {@link #sortTo(Configuration, Stream, Path)}. The stream is sized and its blocks can be
+     * split for parallel processing.
+     *
+     * @throws IllegalStateException if the file is not sorted or its first and last record are not ordered by the
+     *                               configured comparator
+     */
+    public static <T> Stream<T> open(Configuration<T> configuration, Path path) {
+        BlockFile blockFile = BlockFile.open(path);
+        try {
+            if (!blockFile.isSorted()) {
+                throw new IllegalStateException("Not a sorted block file");
+            }
+            if (blockFile.getRecordCount() > 0) {
+                Serializer<T> serializer = configuration.getSerializer();
+                T first = serializer.read(ByteBuffer.wrap(blockFile.getFirstRecord()));
+                T last = serializer.read(ByteBuffer.wrap(blockFile.getLastRecord()));
+                if (configuration.getComparator().compare(first, last) > 0) {
+                    throw new IllegalStateException("File is not sorted by the configured comparator");
+                }
+            }
+        } catch (Throwable t) {
+            try {
+                blockFile.close();
+            } catch (Throwable t2) {
+                t.addSuppressed(t2);
+            }
+            throw t;
+        }
+        BlockFileSpliterator<T> spliterator = new BlockFileSpliterator<>(blockFile, configuration.getSerializer(), configuration.getComparator());
         return StreamSupport.stream(spliterator, false)
                 .onClose(spliterator::close);
     }
 
-    public static <T> Stream<T> sorted(Configuration<T> configuration, Path path) {
-        FileSpliterator<T> spliterator = new FileSpliterator<>(path,
+    private static <T> long write(Configuration<T> configuration, Stream<T> stream, Path path, boolean sorted) {
+        try (BlockFileWriter<T> writer = new BlockFileWriter<>(path,
+                configuration.getSerializer(),
+                configuration.getMaxRecordSize(),
+                configuration.getWriteBufferSize(),
+                sorted)) {
+            stream.forEachOrdered(elem -> {
+                try {
+                    writer.write(elem);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            writer.finish();
+            return writer.getRecordCount();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static <T> Stream<T> stream(Configuration<T> configuration, Path path, boolean parallelBlocks) {
+        FileChannel file;
+        try {
+            file = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                if (BlockFile.isBlockFile(file)) {
+                    BlockFileSpliterator<T> spliterator = new BlockFileSpliterator<>(BlockFile.open(file), configuration.getSerializer());
+                    return StreamSupport.stream(spliterator, parallelBlocks)
+                            .onClose(spliterator::close);
+                }
+            } catch (Throwable t) {
+                try {
+                    file.close();
+                } catch (Throwable t2) {
+                    t.addSuppressed(t2);
+                }
+                throw t;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        FileSpliterator<T> spliterator = new FileSpliterator<>(file,
                 configuration.getSerializer(),
                 configuration.getMaxRecordSize(),
                 configuration.getWriteBufferSize());
         return StreamSupport.stream(spliterator, false)
-                .collect(externalSort(configuration));
+                .onClose(spliterator::close);
     }
 
-
     private static <T> Supplier<Accumulator<T>> supplier(Configuration<T> configuration) {
-        return () -> new Accumulator<>(configuration.getSerializer(),
-                configuration.getComparator(),
-                configuration.getMaxRecordSize(),
-                configuration.getWriteBufferSize(),
-                configuration.getInternalSortMaxItems(),
-                configuration.isParallelSort());
+        return () -> new Accumulator<>(configuration);
+    }
+
+    private static class DefaultSpillExecutor {
+        private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+        static final ExecutorService INSTANCE = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "extsort-spill-" + THREAD_COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     public interface Serializer<T> {
@@ -61,17 +396,240 @@ public class ExternalSortCollectors {
         T read(ByteBuffer in);
     }
 
+    /**
+     * Serializer that also provides an order preserving key prefix for each record. The prefix is stored in front of
+     * the spilled records, so that the in-memory sort and the merge can compare prefixes as unsigned longs and only
+     * need to deserialize records whose prefixes are equal or that are actually returned.
+     * <p>
+     * The prefix must be consistent with the configured comparator: if {@code keyPrefix(a)} is less than
+     * {@code keyPrefix(b)} using {@link Long#compareUnsigned(long, long)}, then {@code a} has to be less than {@code b}.
+     */
+    public interface KeySerializer<T> extends Serializer<T> {
+        long keyPrefix(T data);
+
+        /**
+         * Whether equal prefixes imply that the records are equal according to the comparator, in which case the
+         * comparator is never called.
+         */
+        default boolean isKeyPrefixComplete() {
+            return false;
+        }
+    }
+
+    /**
+     * Compresses the blocks of records in the spill file. Implementations have to be thread-safe.
+     */
+    public interface BlockCodec {
+        /**
+         * Fast LZ77 codec in the style of LZ4, which mostly benefits from repeated byte sequences.
+         */
+        static BlockCodec lz() {
+            return new LzBlockCodec();
+        }
+
+        /**
+         * Codec using {@link java.util.zip.Deflater} with the given compression level.
+         */
+        static BlockCodec deflate(int level) {
+            return new DeflateBlockCodec(level);
+        }
+
+        int maxCompressedLength(int length);
+
+        /**
+         * Compresses {@code length} bytes of {@code src} into {@code dst}, which has room for at least
+         * {@link #maxCompressedLength(int)} bytes, and returns the compressed length.
+         */
+        int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset);
+
+        void decompress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset, int uncompressedLength);
+    }
+
+    /**
+     * Creates the temporary files that runs are spilled to. Spill files have to be readable and writable and should
+     * be deleted when they are closed. Implementations have to be thread-safe.
+     */
+    public interface SpillStorage {
+        /**
+         * Spill files in the default temporary directory.
+         */
+        static SpillStorage tempDirectory() {
+            return new DirectorySpillStorage(Collections.singletonList(Paths.get(System.getProperty("java.io.tmpdir"))), false);
+        }
+
+        /**
+         * Stripes runs across the given directories, spill files are created in the directories in turn.
+         */
+        static SpillStorage striped(List<Path> directories) {
+            return new DirectorySpillStorage(directories, false);
+        }
+
+        /**
+         * Stripes runs across the given directories like {@link #striped(List)}, the stripes of an accumulator are
+         * ordered by usable space, so that its first runs go to the directory with the most of it.
+         */
+        static SpillStorage stripedByFreeSpace(List<Path> directories) {
+            return new DirectorySpillStorage(directories, true);
+        }
+
+        /**
+         * Keeps spill files in memory, mainly for tests. Runs are striped over {@code stripes} files, which can not be
+         * mapped, so the merge always uses buffered reads.
+         */
+        static SpillStorage inMemory(int stripes) {
+            return new MemorySpillStorage(stripes);
+        }
+
+        FileChannel createSpillFile() throws IOException;
+
+        /**
+         * Number of spill files an accumulator writes its runs to in turn, usually the number of devices.
+         */
+        default int getStripeCount() {
+            return 1;
+        }
+
+        /**
+         * Creates the spill files an accumulator writes its runs to in turn, one for each of the
+         * {@link #getStripeCount()} stripes. They are created together, so that each of them can go to another device.
+         */
+        default FileChannel[] createStripes() throws IOException {
+            FileChannel[] stripes = new FileChannel[Math.max(1, getStripeCount())];
+            try {
+                for (int i = 0; i < stripes.length; i++) {
+                    stripes[i] = createSpillFile();
+                }
+            } catch (Throwable t) {
+                for (FileChannel stripe : stripes) {
+                    if (stripe != null) {
+                        try {
+                            stripe.close();
+                        } catch (Throwable t2) {
+                            t.addSuppressed(t2);
+                        }
+                    }
+                }
+                throw t;
+            }
+            return stripes;
+        }
+
+        /**
+         * Whether spill files support {@link FileChannel#map}, otherwise the merge always uses buffered reads.
+         */
+        default boolean isMappable() {
+            return true;
+        }
+
+        /**
+         * Directories of the spill files, used for the spill files of a checkpointed sort which have to survive the
+         * process. An empty list, for example for storage in memory, keeps them next to the manifest.
+         */
+        default List<Path> getDirectories() {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Estimates the number of heap bytes retained by a record while it is buffered for the in-memory sort.
+     */
+    public interface SizeEstimator<T> {
+        long estimateSize(T data);
+    }
+
+    /**
+     * How the chunks of the spill file are read during the merge.
+     */
+    public enum MergeReadMode {
+        /**
+         * Buffered reads when many chunks are merged and their read buffers take at most a quarter of the maximum heap
+         * size, mapped otherwise.
+         */
+        AUTO,
+        /**
+         * Map the chunks and let the operating system page them in.
+         */
+        MAPPED,
+        /**
+         * Read each chunk through its own buffer that is refilled by positional reads. Buffered chunks are not split
+         * by key range for parallel processing.
+         */
+        BUFFERED,
+        /**
+         * Like {@link #BUFFERED}, but the next block of each chunk is read in the background while the current one
+         * is merged.
+         */
+        PREFETCH
+    }
+
+    /**
+     * Sorted result that keeps its spill files until it is closed, so that it can be streamed more than once and
+     * starting at any rank. Streams have to be consumed before the result is closed.
+     */
+    public interface SortedResult<T> extends AutoCloseable {
+        /**
+         * Number of elements in the result.
+         */
+        long size();
+
+        default Stream<T> stream() {
+            return seekToRank(0);
+        }
+
+        /**
+         * Streams the elements starting at the given zero based rank. The merge is positioned using the sparse indexes
+         * of the chunks, so only a few index intervals of the skipped elements are read. Compressed chunks and chunks
+         * read through buffers have no usable index, the elements before the rank are then skipped by the merge.
+         */
+        Stream<T> seekToRank(long rank);
+
+        /**
+         * Streams the elements that are not less than {@code key}. Chunks whose last element is less than the key are
+         * skipped using their zone map, the others are positioned at the key by a binary search over their sparse
+         * index.
+         */
+        Stream<T> from(T key);
+
+        /**
+         * Streams the elements that are not less than {@code from} and less than {@code to}, like
+         * {@link #from(Object)}. Streams of compressed chunks or of chunks read through buffers are not sized.
+         */
+        Stream<T> range(T from, T to);
+
+        @Override
+        void close();
+    }
+
     public static class ConfigurationBuilder<T> {
         static final int DEFAULT_MAX_RECORD_SIZE = 4096;
         static final int DEFAULT_WRITE_BUFFER_SIZE = 16 * DEFAULT_MAX_RECORD_SIZE;
         static final int DEFAULT_INTERNAL_SORT_MAX_ITEMS = 20_000;
+        static final int MAX_INTERNAL_SORT_ITEMS = Integer.MAX_VALUE - 8;
+        static final int DEFAULT_INDEX_INTERVAL = 256;
+        static final int DEFAULT_MERGE_READ_BUFFER_SIZE = 256 * 1024;
 
         private final Serializer<T> serializer;
         private Comparator<T> comparator;
         private int maxRecordSize = DEFAULT_MAX_RECORD_SIZE;
         private int writeBufferSize = DEFAULT_WRITE_BUFFER_SIZE;
-        private int internalSortMaxItems = DEFAULT_INTERNAL_SORT_MAX_ITEMS;
+        private int internalSortMaxItems;
+        private long memoryBudget;
+        private SizeEstimator<T> sizeEstimator;
+        private boolean exactSizeEstimate;
         private boolean parallelSort;
+        private int pipelinedBuffers;
+        private Executor spillExecutor;
+        private int maxMergeFanIn;
+        private int maxSegmentSize = Accumulator.MAX_SEGMENT_SIZE;
+        private int indexInterval = DEFAULT_INDEX_INTERVAL;
+        private int offHeapBufferSize;
+        private BlockCodec blockCodec;
+        private boolean replacementSelection;
+        private boolean distinct;
+        private MergeReadMode mergeReadMode = MergeReadMode.AUTO;
+        private int mergeReadBufferSize = DEFAULT_MERGE_READ_BUFFER_SIZE;
+        private SpillStorage spillStorage;
+        private String checkpointId;
 
         ConfigurationBuilder(Serializer<T> serializer) {
             this.serializer = serializer;
@@ -97,21 +655,223 @@ public class ExternalSortCollectors {
             return this;
         }
 
+        /**
+         * Spill the buffered elements once their estimated size reaches {@code memoryBudget} bytes. The budget applies
+         * to each accumulator, a parallel stream uses one accumulator per thread. Unless
+         * {@link #withInternalSortMaxItems(int)} is also configured, the number of buffered elements is not limited.
+         */
+        public ConfigurationBuilder<T> withMemoryBudget(long memoryBudget) {
+            this.memoryBudget = memoryBudget;
+            return this;
+        }
+
+        /**
+         * Estimator used for {@link #withMemoryBudget(long)}, defaults to the average serialized size of a sample of
+         * the elements.
+         */
+        public ConfigurationBuilder<T> withSizeEstimator(SizeEstimator<T> sizeEstimator) {
+            this.sizeEstimator = sizeEstimator;
+            return this;
+        }
+
+        /**
+         * Let the default size estimator serialize every element instead of a sample, which is more accurate for
+         * elements of very different sizes but serializes each element twice.
+         */
+        public ConfigurationBuilder<T> withExactSizeEstimate() {
+            this.exactSizeEstimate = true;
+            return this;
+        }
+
+        /**
+         * Serialize elements into a direct buffer of {@code bufferSize} bytes as they are collected, instead of
+         * keeping them as objects until the buffer is sorted. The buffer is sorted by an array of key prefixes and
+         * record pointers, so this requires a {@link KeySerializer}. A run is written when the buffer cannot hold
+         * another record of {@link #withMaxRecordSize(int) maximum size}, which replaces
+         * {@link #withMemoryBudget(long)}. Each pipelined buffer allocates its own direct buffer.
+         */
+        public ConfigurationBuilder<T> withOffHeapBuffer(int bufferSize) {
+            this.offHeapBufferSize = bufferSize;
+            return this;
+        }
+
+        /**
+         * Compress the spill file in blocks of {@link #withWriteBufferSize(int)} bytes. Compressed chunks have no sparse
+         * index, so the sorted stream can not be split by key range for parallel processing.
+         */
+        public ConfigurationBuilder<T> withBlockCompression(BlockCodec codec) {
+            this.blockCodec = codec;
+            return this;
+        }
+
+        /**
+         * Generate runs by replacement selection: elements are kept in a heap of
+         * {@link #withInternalSortMaxItems(int)} elements or {@link #withMemoryBudget(long)} bytes and the least
+         * element that can still extend the current run is written whenever the heap is full. On random input this
+         * produces runs of about twice the size of the heap, on partially sorted input even longer runs, so fewer
+         * chunks have to be merged. Can not be combined with pipelined sorting or an off-heap buffer.
+         */
+        public ConfigurationBuilder<T> withReplacementSelection() {
+            this.replacementSelection = true;
+            return this;
+        }
+
+        /**
+         * Drop elements that compare equal to a previous element. Duplicates are removed from each run after the
+         * in-memory sort and again during merge passes and the final merge, so they are not spilled more than once
+         * per run. Can not be combined with replacement selection or an off-heap buffer.
+         */
+        public ConfigurationBuilder<T> withDistinct() {
+            this.distinct = true;
+            return this;
+        }
+
         public ConfigurationBuilder<T> withParallelSort() {
             this.parallelSort = true;
             return this;
         }
 
+        /**
+         * Sort and write full buffers on a background executor while the collecting thread keeps filling the next
+         * buffer. At most {@code inFlightBuffers} buffers are being sorted or written at the same time, each of them
+         * holding up to {@link #withInternalSortMaxItems(int)} elements in addition to the buffer being filled.
+         */
+        public ConfigurationBuilder<T> withPipelinedSort(int inFlightBuffers) {
+            return withPipelinedSort(inFlightBuffers, null);
+        }
+
+        public ConfigurationBuilder<T> withPipelinedSort(int inFlightBuffers, Executor executor) {
+            this.pipelinedBuffers = inFlightBuffers;
+            this.spillExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Limit the number of chunks that are merged at the same time. When more chunks were written, intermediate
+         * merge passes combine groups of chunks into larger chunks in a new spill file before the final merge.
+         */
+        public ConfigurationBuilder<T> withMaxMergeFanIn(int maxMergeFanIn) {
+            this.maxMergeFanIn = maxMergeFanIn;
+            return this;
+        }
+
+        /**
+         * Mapping the spill file works well for a moderate number of chunks, with many chunks the interleaved page
+         * faults turn into small random reads. Buffered reads give each chunk a read-ahead buffer of
+         * {@code bufferSize} bytes instead, {@link MergeReadMode#PREFETCH} uses two of them and reads in the
+         * background on the executor of {@link #withPipelinedSort(int, Executor)} or a shared daemon pool.
+         */
+        public ConfigurationBuilder<T> withMergeReadMode(MergeReadMode mode, int bufferSize) {
+            this.mergeReadMode = mode;
+            this.mergeReadBufferSize = bufferSize;
+            return this;
+        }
+
+        public ConfigurationBuilder<T> withMergeReadMode(MergeReadMode mode) {
+            this.mergeReadMode = mode;
+            return this;
+        }
+
+        /**
+         * Storage for spill files, defaults to {@link SpillStorage#tempDirectory()}.
+         */
+        public ConfigurationBuilder<T> withSpillStorage(SpillStorage spillStorage) {
+            this.spillStorage = spillStorage;
+            return this;
+        }
+
+        /**
+         * Identifies the serializer and comparator in the manifest of {@link #externalSortWithCheckpoint}, so that a
+         * checkpoint is only resumed with the same ones. Lambdas and method references can not be told apart by their
+         * class, so a checkpointed sort using them requires an id, which has to change whenever they change.
+         */
+        public ConfigurationBuilder<T> withCheckpointId(String checkpointId) {
+            this.checkpointId = checkpointId;
+            return this;
+        }
+
+        ConfigurationBuilder<T> withMaxSegmentSize(int maxSegmentSize) {
+            this.maxSegmentSize = maxSegmentSize;
+            return this;
+        }
+
+        ConfigurationBuilder<T> withIndexInterval(int indexInterval) {
+            this.indexInterval = indexInterval;
+            return this;
+        }
+
         public Configuration<T> build() {
             Comparator<T> comparator = this.comparator;
             if (comparator == null) {
                 comparator = naturalOrder();
             }
-            if (maxRecordSize > writeBufferSize) {
+            int spillRecordSize = maxRecordSize + (serializer instanceof KeySerializer ? Long.BYTES : 0);
+            if (spillRecordSize > writeBufferSize) {
                 throw new IllegalArgumentException("record size must not be larger than write buffer");
             }
+            if (memoryBudget < 0) {
+                throw new IllegalArgumentException("memory budget must not be negative");
+            }
+            if (offHeapBufferSize < 0) {
+                throw new IllegalArgumentException("off-heap buffer size must not be negative");
+            }
+            if (offHeapBufferSize > 0) {
+                if (!(serializer instanceof KeySerializer)) {
+                    throw new IllegalArgumentException("off-heap buffer requires a KeySerializer");
+                }
+                if (memoryBudget > 0) {
+                    throw new IllegalArgumentException("off-heap buffer can not be combined with a memory budget");
+                }
+                if (offHeapBufferSize < maxRecordSize) {
+                    throw new IllegalArgumentException("off-heap buffer must not be smaller than record size");
+                }
+            }
+            if (replacementSelection && (offHeapBufferSize > 0 || pipelinedBuffers > 0)) {
+                throw new IllegalArgumentException("replacement selection can not be combined with an off-heap buffer or pipelined sort");
+            }
+            if (distinct && (offHeapBufferSize > 0 || replacementSelection)) {
+                throw new IllegalArgumentException("distinct can not be combined with an off-heap buffer or replacement selection");
+            }
+            int internalSortMaxItems = this.internalSortMaxItems;
+            if (internalSortMaxItems <= 0) {
+                internalSortMaxItems = memoryBudget > 0 || offHeapBufferSize > 0 ? MAX_INTERNAL_SORT_ITEMS : DEFAULT_INTERNAL_SORT_MAX_ITEMS;
+            }
+            SizeEstimator<T> sizeEstimator = this.sizeEstimator;
+            if (memoryBudget > 0 && sizeEstimator == null) {
+                sizeEstimator = new SerializedSizeEstimator<>(serializer, maxRecordSize,
+                        exactSizeEstimate ? 1 : SerializedSizeEstimator.DEFAULT_SAMPLE_INTERVAL);
+            }
+            if (maxMergeFanIn < 0 || maxMergeFanIn == 1) {
+                throw new IllegalArgumentException("merge fan-in must be at least 2");
+            }
+            if (maxSegmentSize < spillRecordSize || maxSegmentSize > Accumulator.MAX_SEGMENT_SIZE) {
+                throw new IllegalArgumentException("segment size must be between record size and " + Accumulator.MAX_SEGMENT_SIZE);
+            }
+            if (blockCodec != null && maxSegmentSize < ChunkWriter.FRAME_HEADER_SIZE + blockCodec.maxCompressedLength(writeBufferSize)) {
+                throw new IllegalArgumentException("segment size must not be smaller than a compressed block");
+            }
+            if (indexInterval <= 0) {
+                throw new IllegalArgumentException("index interval must be positive");
+            }
+            if (pipelinedBuffers < 0) {
+                throw new IllegalArgumentException("number of in-flight buffers must not be negative");
+            }
+            if (mergeReadMode == null) {
+                throw new IllegalArgumentException("merge read mode must not be null");
+            }
+            if (mergeReadBufferSize <= 0) {
+                throw new IllegalArgumentException("merge read buffer size must be positive");
+            }
+            SpillStorage spillStorage = this.spillStorage;
+            if (spillStorage == null) {
+                spillStorage = SpillStorage.tempDirectory();
+            }
+            Executor spillExecutor = this.spillExecutor;
+            if ((pipelinedBuffers > 0 || mergeReadMode == MergeReadMode.PREFETCH) && spillExecutor == null) {
+                spillExecutor = DefaultSpillExecutor.INSTANCE;
+            }
 
-            return new Configuration<>(serializer, comparator, maxRecordSize, writeBufferSize, internalSortMaxItems, parallelSort);
+            return new Configuration<>(this, comparator, internalSortMaxItems, sizeEstimator, spillExecutor, spillStorage);
         }
 
         @SuppressWarnings("unchecked")
@@ -126,21 +886,55 @@ public class ExternalSortCollectors {
         private final int maxRecordSize;
         private final int writeBufferSize;
         private final int internalSortMaxItems;
+        private final long memoryBudget;
+        private final SizeEstimator<T> sizeEstimator;
         private final boolean parallelSort;
-
-        Configuration(Serializer<T> serializer, Comparator<T> comparator, int maxRecordSize, int writeBufferSize, int internalSortMaxItems, boolean parallelSort) {
-            this.serializer = serializer;
+        private final int pipelinedBuffers;
+        private final Executor spillExecutor;
+        private final int maxMergeFanIn;
+        private final int maxSegmentSize;
+        private final int indexInterval;
+        private final int offHeapBufferSize;
+        private final BlockCodec blockCodec;
+        private final boolean replacementSelection;
+        private final boolean distinct;
+        private final MergeReadMode mergeReadMode;
+        private final int mergeReadBufferSize;
+        private final SpillStorage spillStorage;
+        private final String checkpointId;
+
+        Configuration(ConfigurationBuilder<T> builder, Comparator<T> comparator, int internalSortMaxItems, SizeEstimator<T> sizeEstimator, Executor spillExecutor, SpillStorage spillStorage) {
+            this.serializer = builder.serializer;
             this.comparator = comparator;
-            this.maxRecordSize = maxRecordSize;
-            this.writeBufferSize = writeBufferSize;
+            this.maxRecordSize = builder.maxRecordSize;
+            this.writeBufferSize = builder.writeBufferSize;
             this.internalSortMaxItems = internalSortMaxItems;
-            this.parallelSort = parallelSort;
+            this.memoryBudget = builder.memoryBudget;
+            this.sizeEstimator = sizeEstimator;
+            this.parallelSort = builder.parallelSort;
+            this.pipelinedBuffers = builder.pipelinedBuffers;
+            this.spillExecutor = spillExecutor;
+            this.maxMergeFanIn = builder.maxMergeFanIn;
+            this.maxSegmentSize = builder.maxSegmentSize;
+            this.indexInterval = builder.indexInterval;
+            this.offHeapBufferSize = builder.offHeapBufferSize;
+            this.blockCodec = builder.blockCodec;
+            this.replacementSelection = builder.replacementSelection;
+            this.distinct = builder.distinct;
+            this.mergeReadMode = builder.mergeReadMode;
+            this.mergeReadBufferSize = builder.mergeReadBufferSize;
+            this.spillStorage = spillStorage;
+            this.checkpointId = builder.checkpointId;
         }
 
         public Serializer<T> getSerializer() {
             return serializer;
         }
 
+        KeySerializer<T> getKeySerializer() {
+            return serializer instanceof KeySerializer ? (KeySerializer<T>) serializer : null;
+        }
+
         public Comparator<T> getComparator() {
             return comparator;
         }
@@ -157,9 +951,69 @@ public class ExternalSortCollectors {
             return internalSortMaxItems;
         }
 
+        public long getMemoryBudget() {
+            return memoryBudget;
+        }
+
+        public SizeEstimator<T> getSizeEstimator() {
+            return sizeEstimator;
+        }
+
         public boolean isParallelSort() {
             return parallelSort;
         }
+
+        public int getPipelinedBuffers() {
+            return pipelinedBuffers;
+        }
+
+        public Executor getSpillExecutor() {
+            return spillExecutor;
+        }
+
+        public int getMaxMergeFanIn() {
+            return maxMergeFanIn;
+        }
+
+        public int getOffHeapBufferSize() {
+            return offHeapBufferSize;
+        }
+
+        public BlockCodec getBlockCodec() {
+            return blockCodec;
+        }
+
+        public boolean isReplacementSelection() {
+            return replacementSelection;
+        }
+
+        public boolean isDistinct() {
+            return distinct;
+        }
+
+        public MergeReadMode getMergeReadMode() {
+            return mergeReadMode;
+        }
+
+        public int getMergeReadBufferSize() {
+            return mergeReadBufferSize;
+        }
+
+        public SpillStorage getSpillStorage() {
+            return spillStorage;
+        }
+
+        public String getCheckpointId() {
+            return checkpointId;
+        }
+
+        int getMaxSegmentSize() {
+            return maxSegmentSize;
+        }
+
+        int getIndexInterval() {
+            return indexInterval;
+        }
     }
 
 
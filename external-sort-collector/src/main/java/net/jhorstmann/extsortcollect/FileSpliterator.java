@@ -79,6 +79,12 @@ class FileSpliterator<T> implements Spliterator<T>, Closeable {
                 }
                 buffer.compact();
             }
+            // records at the end of the file can be smaller than maxRecordSize
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                T data = serializer.read(buffer);
+                action.accept(data);
+            }
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
@@ -0,0 +1,424 @@
+package net.jhorstmann.extsortcollect;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Groups elements by key without sorting. Whenever the buffer is full, its elements are hash partitioned by their key
+ * and each partition is appended to the spill file as one segment. The groups are then built one partition at a time,
+ * partitions with more elements or estimated bytes than fit into the buffer are partitioned again with a different
+ * hash function.
+ */
+class GroupingAccumulator<T, K, A, D> implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(ExternalSortCollectors.class);
+
+    static final int PARTITIONS = 16;
+
+    private final ExternalSortCollectors.Serializer<T> serializer;
+    private final Function<? super T, ? extends K> classifier;
+    private final Supplier<A> downstreamSupplier;
+    private final BiConsumer<A, ? super T> downstreamAccumulator;
+    private final Function<A, D> downstreamFinisher;
+    private final int maxItems;
+    private final long memoryBudget;
+    private final ExternalSortCollectors.SizeEstimator<T> sizeEstimator;
+    private final int maxRecordSize;
+    private final int writeBufferSize;
+    private final ExternalSortCollectors.SpillStorage spillStorage;
+    private final Accumulator.Elements<T> data;
+    // all spill files referenced by segments, new segments are appended to the stripes in turn
+    private final ArrayList<FileChannel> files;
+    private final FileChannel[] stripes;
+    private int nextStripe;
+    private ByteBuffer buffer;
+    // partitions of the first level, null as long as nothing was spilled
+    private Partition[] partitions;
+
+    GroupingAccumulator(ExternalSortCollectors.Configuration<T> configuration, Function<? super T, ? extends K> classifier, Collector<? super T, A, D> downstream) {
+        this.serializer = configuration.getSerializer();
+        this.classifier = classifier;
+        this.downstreamSupplier = downstream.supplier();
+        this.downstreamAccumulator = downstream.accumulator();
+        this.downstreamFinisher = downstream.finisher();
+        this.maxItems = configuration.getInternalSortMaxItems();
+        this.memoryBudget = configuration.getMemoryBudget();
+        this.sizeEstimator = configuration.getSizeEstimator();
+        this.maxRecordSize = configuration.getMaxRecordSize();
+        this.writeBufferSize = configuration.getWriteBufferSize();
+        this.spillStorage = configuration.getSpillStorage();
+        this.data = new Accumulator.Elements<>(maxItems, memoryBudget, sizeEstimator, false, null);
+        this.files = new ArrayList<>();
+        this.stripes = new FileChannel[Math.max(1, spillStorage.getStripeCount())];
+    }
+
+    static class Segment {
+        final FileChannel file;
+        final long offset;
+        final long length;
+
+        Segment(FileChannel file, long offset, long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    static class Partition {
+        final int level;
+        final ArrayList<Segment> segments = new ArrayList<>();
+        long count;
+        // estimated size of the elements, only tracked with a memory budget
+        long estimatedSize;
+        // false if partitioning the parent did not make this partition smaller, for example because of a single large group
+        boolean splittable = true;
+
+        Partition(int level) {
+            this.level = level;
+        }
+    }
+
+    void add(T elem) {
+        data.add(elem);
+        if (data.isFull()) {
+            if (partitions == null) {
+                partitions = newPartitions(0);
+            }
+            spill(partitions);
+        }
+    }
+
+    GroupingAccumulator<T, K, A, D> combine(GroupingAccumulator<T, K, A, D> other) {
+        if (other.partitions != null) {
+            if (partitions == null) {
+                partitions = newPartitions(0);
+            }
+            for (int i = 0; i < PARTITIONS; i++) {
+                partitions[i].segments.addAll(other.partitions[i].segments);
+                partitions[i].count += other.partitions[i].count;
+                partitions[i].estimatedSize += other.partitions[i].estimatedSize;
+            }
+            files.addAll(other.files);
+            other.files.clear();
+        }
+        other.data.forEach(this::add);
+        other.data.clear();
+        return this;
+    }
+
+    Stream<Map.Entry<K, D>> finish() {
+        if (partitions == null) {
+            Map<K, A> groups = new HashMap<>();
+            data.forEach(elem -> accumulate(groups, elem));
+            data.clear();
+            return groups.entrySet().stream().map(this::finishGroup);
+        }
+
+        spill(partitions);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Grouping [{}] spilled partitions", PARTITIONS);
+        }
+        GroupSpliterator spliterator = new GroupSpliterator(partitions);
+        return StreamSupport.stream(spliterator, false)
+                .onClose(() -> {
+                    try {
+                        close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    private void accumulate(Map<K, A> groups, T elem) {
+        K key = Objects.requireNonNull(classifier.apply(elem), "element cannot be mapped to a null key");
+        downstreamAccumulator.accept(groups.computeIfAbsent(key, k -> downstreamSupplier.get()), elem);
+    }
+
+    private Map.Entry<K, D> finishGroup(Map.Entry<K, A> group) {
+        return new AbstractMap.SimpleImmutableEntry<>(group.getKey(), downstreamFinisher.apply(group.getValue()));
+    }
+
+    private static Partition[] newPartitions(int level) {
+        Partition[] partitions = new Partition[PARTITIONS];
+        for (int i = 0; i < PARTITIONS; i++) {
+            partitions[i] = new Partition(level);
+        }
+        return partitions;
+    }
+
+    /**
+     * Partition of a key, each level mixes the hash code with a different seed so that partitions split again.
+     */
+    static int partition(Object key, int level) {
+        int h = key.hashCode() + level * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % PARTITIONS;
+    }
+
+    private void spill(Partition[] partitions) {
+        try {
+            try {
+                writePartitions(partitions);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } catch (Throwable t) {
+            try {
+                close();
+            } catch (Throwable t2) {
+                t.addSuppressed(t2);
+            }
+            throw t;
+        }
+    }
+
+    private void writePartitions(Partition[] partitions) throws IOException {
+        Accumulator.Elements<T> data = this.data;
+        int size = data.size();
+        if (size == 0) {
+            return;
+        }
+        long t1 = System.currentTimeMillis();
+
+        int level = partitions[0].level;
+        int[] partitionOf = new int[size];
+        int[] starts = new int[PARTITIONS + 1];
+        for (int i = 0; i < size; i++) {
+            K key = Objects.requireNonNull(classifier.apply(data.get(i)), "element cannot be mapped to a null key");
+            int partition = partition(key, level);
+            partitionOf[i] = partition;
+            starts[partition + 1]++;
+        }
+        for (int p = 0; p < PARTITIONS; p++) {
+            starts[p + 1] += starts[p];
+        }
+        // stable counting sort by partition, so that groups keep the order of their elements
+        int[] order = new int[size];
+        int[] next = starts.clone();
+        for (int i = 0; i < size; i++) {
+            order[next[partitionOf[i]]++] = i;
+        }
+
+        FileChannel file = spillFile();
+        ByteBuffer buffer = this.buffer;
+        if (buffer == null) {
+            this.buffer = buffer = ByteBuffer.allocateDirect(writeBufferSize);
+        }
+        for (int p = 0; p < PARTITIONS; p++) {
+            if (starts[p] == starts[p + 1]) {
+                continue;
+            }
+            long offset = file.position();
+            long estimatedSize = 0;
+            for (int j = starts[p]; j < starts[p + 1]; j++) {
+                if (buffer.remaining() < maxRecordSize) {
+                    flush(file, buffer);
+                }
+                T elem = data.getAndClear(order[j]);
+                if (memoryBudget > 0) {
+                    estimatedSize += sizeEstimator.estimateSize(elem);
+                }
+                serializer.write(buffer, elem);
+            }
+            flush(file, buffer);
+            partitions[p].segments.add(new Segment(file, offset, file.position() - offset));
+            partitions[p].count += starts[p + 1] - starts[p];
+            partitions[p].estimatedSize += estimatedSize;
+        }
+        data.clear();
+
+        if (LOG.isTraceEnabled()) {
+            long t2 = System.currentTimeMillis();
+            LOG.trace("Partitioned [{}] elements at level [{}] in [{}ms]", size, level, t2 - t1);
+        }
+    }
+
+    private static void flush(FileChannel file, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            file.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Returns the spill file for the next segments, spills are written to the stripes of the spill storage in turn.
+     */
+    private FileChannel spillFile() throws IOException {
+        int stripe = nextStripe;
+        nextStripe = stripe + 1 == stripes.length ? 0 : stripe + 1;
+        FileChannel file = stripes[stripe];
+        if (file == null) {
+            // the stripes are created together, so that they end up on different devices
+            FileChannel[] created = spillStorage.createStripes();
+            System.arraycopy(created, 0, stripes, 0, stripes.length);
+            files.addAll(Arrays.asList(created));
+            file = stripes[stripe];
+        }
+        return file;
+    }
+
+    private void readPartition(Partition partition, ByteBuffer buffer, Consumer<T> action) throws IOException {
+        for (Segment segment : partition.segments) {
+            long position = segment.offset;
+            long end = segment.offset + segment.length;
+            buffer.clear();
+            buffer.limit(0);
+            while (true) {
+                if (buffer.remaining() < maxRecordSize && position < end) {
+                    buffer.compact();
+                    buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + end - position));
+                    while (buffer.hasRemaining()) {
+                        int read = segment.file.read(buffer, position);
+                        if (read < 0) {
+                            throw new EOFException("partition segment ends after file");
+                        }
+                        position += read;
+                    }
+                    buffer.flip();
+                }
+                if (!buffer.hasRemaining()) {
+                    break;
+                }
+                action.accept(serializer.read(buffer));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (FileChannel file : files) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        files.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Builds the groups of one partition at a time and partitions them again if they do not fit into memory.
+     */
+    private class GroupSpliterator implements Spliterator<Map.Entry<K, D>> {
+        private final ArrayDeque<Partition> pending;
+        private final ByteBuffer readBuffer;
+        private Iterator<Map.Entry<K, A>> groups;
+
+        GroupSpliterator(Partition[] partitions) {
+            this.pending = new ArrayDeque<>(PARTITIONS);
+            for (Partition partition : partitions) {
+                if (partition.count > 0) {
+                    pending.add(partition);
+                }
+            }
+            this.readBuffer = ByteBuffer.allocate(writeBufferSize);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Map.Entry<K, D>> action) {
+            try {
+                while (groups == null || !groups.hasNext()) {
+                    Partition partition = pending.pollFirst();
+                    if (partition == null) {
+                        return false;
+                    }
+                    if (partition.splittable && !fits(partition)) {
+                        repartition(partition);
+                        groups = null;
+                    } else {
+                        groups = group(partition);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            Map.Entry<K, A> group = groups.next();
+            // groups are released as soon as they are returned
+            groups.remove();
+            action.accept(finishGroup(group));
+            return true;
+        }
+
+        /**
+         * Like {@link Accumulator.Elements#isFull()}, the groups of a partition are only built in memory if its
+         * elements fit into the buffer.
+         */
+        private boolean fits(Partition partition) {
+            return partition.count <= maxItems && (memoryBudget <= 0 || partition.estimatedSize <= memoryBudget);
+        }
+
+        private Iterator<Map.Entry<K, A>> group(Partition partition) throws IOException {
+            Map<K, A> groups = new HashMap<>();
+            readPartition(partition, readBuffer, elem -> accumulate(groups, elem));
+            return groups.entrySet().iterator();
+        }
+
+        private void repartition(Partition partition) throws IOException {
+            Partition[] children = newPartitions(partition.level + 1);
+            readPartition(partition, readBuffer, elem -> {
+                data.add(elem);
+                if (data.isFull()) {
+                    spill(children);
+                }
+            });
+            spill(children);
+            for (int i = PARTITIONS - 1; i >= 0; i--) {
+                Partition child = children[i];
+                if (child.count > 0) {
+                    child.splittable = child.count < partition.count;
+                    pending.addFirst(child);
+                }
+            }
+        }
+
+        @Override
+        public Spliterator<Map.Entry<K, D>> trySplit() {
+            return null;
+        }
+
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.DISTINCT | Spliterator.NONNULL;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package net.jhorstmann.extsortcollect;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Stable sort of elements together with their key prefixes. Prefixes are compared as unsigned longs, the
+ * comparator is only called for equal prefixes unless the prefixes are complete. Larger arrays are sorted by a
+ * radix sort of the prefixes followed by sorting each range of equal prefixes with the comparator, smaller arrays
+ * by a merge sort.
+ */
+class KeyPrefixSort {
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private final Comparator<Object> comparator;
+    private final boolean complete;
+
+    private KeyPrefixSort(Comparator<Object> comparator, boolean complete) {
+        this.comparator = comparator;
+        this.complete = complete;
+    }
+
+    static void sort(long[] keys, Object[] data, int size, Comparator<Object> comparator, boolean complete, boolean parallel) {
+        if (size < 2) {
+            return;
+        }
+        if (size >= RadixSort.THRESHOLD) {
+            RadixSort.sort(keys, data, size, parallel);
+            if (!complete) {
+                sortEqualPrefixes(keys, data, size, comparator);
+            }
+            return;
+        }
+        KeyPrefixSort sort = new KeyPrefixSort(comparator, complete);
+        sort.mergeSort(Arrays.copyOf(keys, size), Arrays.copyOf(data, size), keys, data, 0, size);
+    }
+
+    private static void sortEqualPrefixes(long[] keys, Object[] data, int size, Comparator<Object> comparator) {
+        for (int from = 0, to; from < size; from = to) {
+            long key = keys[from];
+            for (to = from + 1; to < size && keys[to] == key; to++) {
+            }
+            if (to - from > 1) {
+                Arrays.sort(data, from, to, comparator);
+            }
+        }
+    }
+
+    private int compare(long k1, Object d1, long k2, Object d2) {
+        int res = Long.compareUnsigned(k1, k2);
+        if (res != 0 || complete) {
+            return res;
+        }
+        return comparator.compare(d1, d2);
+    }
+
+    /**
+     * Sorts the range {@code [from, to)} from {@code src} into {@code dst}, both arrays have to contain the same
+     * elements in that range. The range in {@code src} is used as scratch space.
+     */
+    private void mergeSort(long[] srcKeys, Object[] src, long[] dstKeys, Object[] dst, int from, int to) {
+        if (to - from <= INSERTION_SORT_THRESHOLD) {
+            insertionSort(dstKeys, dst, from, to);
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(dstKeys, dst, srcKeys, src, from, mid);
+        mergeSort(dstKeys, dst, srcKeys, src, mid, to);
+        merge(srcKeys, src, dstKeys, dst, from, mid, to);
+    }
+
+    private void merge(long[] srcKeys, Object[] src, long[] dstKeys, Object[] dst, int from, int mid, int to) {
+        if (compare(srcKeys[mid - 1], src[mid - 1], srcKeys[mid], src[mid]) <= 0) {
+            System.arraycopy(srcKeys, from, dstKeys, from, to - from);
+            System.arraycopy(src, from, dst, from, to - from);
+            return;
+        }
+        for (int i = from, p = from, q = mid; i < to; i++) {
+            if (q >= to || (p < mid && compare(srcKeys[p], src[p], srcKeys[q], src[q]) <= 0)) {
+                dstKeys[i] = srcKeys[p];
+                dst[i] = src[p++];
+            } else {
+                dstKeys[i] = srcKeys[q];
+                dst[i] = src[q++];
+            }
+        }
+    }
+
+    private void insertionSort(long[] keys, Object[] data, int from, int to) {
+        for (int i = from + 1; i < to; i++) {
+            long key = keys[i];
+            Object elem = data[i];
+            int j = i - 1;
+            while (j >= from && compare(keys[j], data[j], key, elem) > 0) {
+                keys[j + 1] = keys[j];
+                data[j + 1] = data[j];
+                j--;
+            }
+            keys[j + 1] = key;
+            data[j + 1] = elem;
+        }
+    }
+}
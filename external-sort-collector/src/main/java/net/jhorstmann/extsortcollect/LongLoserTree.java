@@ -0,0 +1,74 @@
+package net.jhorstmann.extsortcollect;
+
+/**
+ * Tournament tree for the k-way merge of {@link LongRun runs} of primitive values, laid out like {@link LoserTree}.
+ * Leaves are stored implicitly at positions {@code k..2k-1}, inner nodes at {@code 1..k-1} and the overall winner
+ * at position 0. Exhausted runs lose every match.
+ */
+class LongLoserTree {
+    private final LongRun[] runs;
+    private final int[] tree;
+
+    LongLoserTree(LongRun[] runs) {
+        int k = runs.length;
+        this.runs = runs;
+        this.tree = new int[Math.max(1, k)];
+
+        if (k > 1) {
+            int[] winners = new int[2 * k];
+            for (int i = 0; i < k; i++) {
+                winners[k + i] = i;
+            }
+            for (int node = k - 1; node > 0; node--) {
+                int left = winners[2 * node];
+                int right = winners[2 * node + 1];
+                if (less(right, left)) {
+                    winners[node] = right;
+                    tree[node] = left;
+                } else {
+                    winners[node] = left;
+                    tree[node] = right;
+                }
+            }
+            tree[0] = winners[1];
+        }
+    }
+
+    private boolean less(int i, int j) {
+        LongRun a = runs[i];
+        LongRun b = runs[j];
+        if (a.isExhausted()) {
+            return false;
+        } else if (b.isExhausted()) {
+            return true;
+        } else {
+            return a.head() < b.head();
+        }
+    }
+
+    /**
+     * Returns the least current value, which is only valid if not all runs are exhausted.
+     */
+    long peek() {
+        return runs[tree[0]].head();
+    }
+
+    /**
+     * Advances the run of the least value and replays the matches on the path from its leaf to the root.
+     */
+    void update() {
+        LongRun[] runs = this.runs;
+        int[] tree = this.tree;
+        int winner = tree[0];
+        runs[winner].advance();
+
+        for (int node = (winner + runs.length) >>> 1; node > 0; node >>>= 1) {
+            int loser = tree[node];
+            if (less(loser, winner)) {
+                tree[node] = winner;
+                winner = loser;
+            }
+        }
+        tree[0] = winner;
+    }
+}
@@ -0,0 +1,91 @@
+package net.jhorstmann.extsortcollect;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.util.Comparator;
+import java.util.Spliterator;
+import java.util.function.LongConsumer;
+
+/**
+ * Merges sorted runs of fixed width values from one or more spill files using a {@link LongLoserTree} over the current
+ * head of each run. Runs are read with positional reads into a small buffer per run, so the number of runs is not
+ * limited by the size of the address space.
+ */
+class LongMergeSpliterator implements Spliterator.OfLong, Closeable {
+    private final FileChannel[] files;
+    private final LongLoserTree tree;
+    private long size;
+
+    LongMergeSpliterator(FileChannel[] files, int width, FileChannel[] runFiles, long[] offsets, long[] counts, int bufferSize) {
+        this.files = files;
+        LongRun[] runs = new LongRun[offsets.length];
+        for (int i = 0; i < runs.length; i++) {
+            runs[i] = new LongRun(runFiles[i], width, offsets[i], counts[i], bufferSize);
+            size += counts[i];
+        }
+        this.tree = new LongLoserTree(runs);
+    }
+
+    @Override
+    public boolean tryAdvance(LongConsumer action) {
+        if (size == 0) {
+            return false;
+        }
+        long value = tree.peek();
+        tree.update();
+        size--;
+        action.accept(value);
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(LongConsumer action) {
+        LongLoserTree tree = this.tree;
+        for (; size > 0; size--) {
+            long value = tree.peek();
+            tree.update();
+            action.accept(value);
+        }
+    }
+
+    @Override
+    public Spliterator.OfLong trySplit() {
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        return size;
+    }
+
+    @Override
+    public int characteristics() {
+        return Spliterator.IMMUTABLE | Spliterator.ORDERED | Spliterator.SORTED | Spliterator.SIZED;
+    }
+
+    @Override
+    public Comparator<? super Long> getComparator() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+        IOException failure = null;
+        for (FileChannel file : files) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw new UncheckedIOException(failure);
+        }
+    }
+}
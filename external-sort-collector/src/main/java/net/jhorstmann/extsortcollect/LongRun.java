@@ -0,0 +1,70 @@
+package net.jhorstmann.extsortcollect;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sorted run of fixed width values in a spill file, read with positional reads into a small buffer. The current value
+ * is the head of the run, an exhausted run has no head.
+ */
+class LongRun {
+    private final FileChannel file;
+    private final int width;
+    private ByteBuffer buffer;
+    private long position;
+    private long remaining;
+    private long head;
+
+    LongRun(FileChannel file, int width, long offset, long count, int bufferSize) {
+        this.file = file;
+        this.width = width;
+        this.position = offset;
+        this.remaining = count;
+        this.buffer = ByteBuffer.allocate(Math.max(width, bufferSize - bufferSize % width));
+        this.buffer.limit(0);
+        advance();
+    }
+
+    boolean isExhausted() {
+        return remaining < 0;
+    }
+
+    long head() {
+        return head;
+    }
+
+    /**
+     * Reads the next value into the head, a run without remaining values becomes exhausted.
+     */
+    void advance() {
+        if (remaining < 0) {
+            return;
+        }
+        if (remaining == 0) {
+            remaining = -1;
+            buffer = null;
+            return;
+        }
+        ByteBuffer buffer = this.buffer;
+        if (!buffer.hasRemaining()) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), remaining * width));
+            try {
+                while (buffer.hasRemaining()) {
+                    int read = file.read(buffer, position);
+                    if (read < 0) {
+                        throw new IOException("Unexpected end of spill file");
+                    }
+                    position += read;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buffer.flip();
+        }
+        head = width == Long.BYTES ? buffer.getLong() : buffer.getInt();
+        remaining--;
+    }
+}
@@ -0,0 +1,111 @@
+package net.jhorstmann.extsortcollect;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tournament tree for the k-way merge. Inner nodes store the loser of the match between their subtrees, so
+ * replacing the current winner only replays the matches on the path from its leaf to the root, which needs
+ * {@code log2(k)} comparisons per element.
+ * <p>
+ * Leaves are stored implicitly at positions {@code k..2k-1}, inner nodes at {@code 1..k-1} and the overall winner
+ * at position 0. Exhausted chunks lose every match.
+ */
+class LoserTree<T> implements MergeQueue<T> {
+    private final ReadableChunk<T>[] chunks;
+    private final int[] tree;
+
+    @SuppressWarnings("unchecked")
+    LoserTree(List<ReadableChunk<T>> chunks) {
+        int k = chunks.size();
+        this.chunks = (ReadableChunk<T>[]) chunks.toArray(new ReadableChunk<?>[k]);
+        this.tree = new int[Math.max(1, k)];
+
+        for (int i = 0; i < k; i++) {
+            if (!this.chunks[i].hasNext()) {
+                this.chunks[i].close();
+                this.chunks[i] = null;
+            }
+        }
+
+        if (k > 1) {
+            int[] winners = new int[2 * k];
+            for (int i = 0; i < k; i++) {
+                winners[k + i] = i;
+            }
+            for (int node = k - 1; node > 0; node--) {
+                int left = winners[2 * node];
+                int right = winners[2 * node + 1];
+                if (less(right, left)) {
+                    winners[node] = right;
+                    tree[node] = left;
+                } else {
+                    winners[node] = left;
+                    tree[node] = right;
+                }
+            }
+            tree[0] = winners[1];
+        }
+    }
+
+    private boolean less(int i, int j) {
+        ReadableChunk<T> a = chunks[i];
+        ReadableChunk<T> b = chunks[j];
+        if (a == null) {
+            return false;
+        } else if (b == null) {
+            return true;
+        } else {
+            return a.compareTo(b) < 0;
+        }
+    }
+
+    @Override
+    public ReadableChunk<T> peek() {
+        return chunks.length == 0 ? null : chunks[tree[0]];
+    }
+
+    @Override
+    public void update() {
+        ReadableChunk<T>[] chunks = this.chunks;
+        int[] tree = this.tree;
+        int winner = tree[0];
+
+        ReadableChunk<T> chunk = chunks[winner];
+        if (!chunk.hasNext()) {
+            chunk.close();
+            chunks[winner] = null;
+        }
+
+        for (int node = (winner + chunks.length) >>> 1; node > 0; node >>>= 1) {
+            int loser = tree[node];
+            if (less(loser, winner)) {
+                tree[node] = winner;
+                winner = loser;
+            }
+        }
+        tree[0] = winner;
+    }
+
+    @Override
+    public List<ReadableChunk<T>> chunks() {
+        List<ReadableChunk<T>> result = new ArrayList<>(chunks.length);
+        for (ReadableChunk<T> chunk : chunks) {
+            if (chunk != null) {
+                result.add(chunk);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        ReadableChunk<T>[] chunks = this.chunks;
+        for (int i = 0; i < chunks.length; i++) {
+            if (chunks[i] != null) {
+                chunks[i].close();
+                chunks[i] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package net.jhorstmann.extsortcollect;
+
+import java.util.Arrays;
+
+/**
+ * Byte oriented LZ77 codec in the style of LZ4. A compressed block is a sequence of literal runs, each followed by a
+ * back reference of at least {@link #MIN_MATCH} bytes, except for the last one. A token byte holds the literal
+ * length in its upper and the match length in its lower four bits, a value of 15 continues with additional length
+ * bytes. Back references are 2 byte little endian distances.
+ */
+class LzBlockCodec implements ExternalSortCollectors.BlockCodec {
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_DISTANCE = 0xFFFF;
+    private static final int HASH_BITS = 14;
+
+    private final ThreadLocal<int[]> hashTable = ThreadLocal.withInitial(() -> new int[1 << HASH_BITS]);
+
+    @Override
+    public int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    @Override
+    public int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+        int[] table = hashTable.get();
+        Arrays.fill(table, -1);
+
+        int end = srcOffset + length;
+        int matchLimit = end - MIN_MATCH;
+        int anchor = srcOffset;
+        int ip = srcOffset;
+        int op = dstOffset;
+
+        while (ip <= matchLimit) {
+            int sequence = readInt(src, ip);
+            int hash = (sequence * -1640531535) >>> (Integer.SIZE - HASH_BITS);
+            int ref = table[hash];
+            table[hash] = ip;
+
+            if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                ip++;
+                continue;
+            }
+
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < end && src[ref + matchLength] == src[ip + matchLength]) {
+                matchLength++;
+            }
+
+            op = writeSequence(src, anchor, ip - anchor, dst, op, matchLength - MIN_MATCH);
+            dst[op++] = (byte) (ip - ref);
+            dst[op++] = (byte) ((ip - ref) >>> 8);
+            op = writeLength(dst, op, matchLength - MIN_MATCH);
+
+            ip += matchLength;
+            anchor = ip;
+        }
+
+        op = writeSequence(src, anchor, end - anchor, dst, op, 0);
+        return op - dstOffset;
+    }
+
+    private static int writeSequence(byte[] src, int literalOffset, int literalLength, byte[] dst, int op, int matchLength) {
+        dst[op++] = (byte) ((Math.min(literalLength, 15) << 4) | Math.min(matchLength, 15));
+        op = writeLength(dst, op, literalLength);
+        System.arraycopy(src, literalOffset, dst, op, literalLength);
+        return op + literalLength;
+    }
+
+    private static int writeLength(byte[] dst, int op, int length) {
+        if (length >= 15) {
+            length -= 15;
+            while (length >= 255) {
+                dst[op++] = (byte) 255;
+                length -= 255;
+            }
+            dst[op++] = (byte) length;
+        }
+        return op;
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset, int uncompressedLength) {
+        int end = srcOffset + length;
+        int ip = srcOffset;
+        int op = dstOffset;
+        int dstEnd = dstOffset + uncompressedLength;
+
+        while (ip < end) {
+            int token = src[ip++] & 0xFF;
+
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int b;
+                do {
+                    b = src[ip++] & 0xFF;
+                    literalLength += b;
+                } while (b == 255);
+            }
+            if (op + literalLength > dstEnd || ip + literalLength > end) {
+                throw new IllegalStateException("Corrupt compressed block");
+            }
+            System.arraycopy(src, ip, dst, op, literalLength);
+            ip += literalLength;
+            op += literalLength;
+
+            if (ip == end) {
+                break;
+            }
+
+            int distance = (src[ip++] & 0xFF) | (src[ip++] & 0xFF) << 8;
+            int matchLength = token & 0x0F;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    b = src[ip++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+
+            int ref = op - distance;
+            if (distance == 0 || ref < dstOffset || op + matchLength > dstEnd) {
+                throw new IllegalStateException("Corrupt compressed block");
+            }
+            if (distance >= matchLength) {
+                System.arraycopy(dst, ref, dst, op, matchLength);
+                op += matchLength;
+            } else {
+                // byte by byte since the match overlaps with its own output
+                for (int i = 0; i < matchLength; i++) {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        }
+
+        if (op != dstEnd) {
+            throw new IllegalStateException("Corrupt compressed block");
+        }
+    }
+
+    private static int readInt(byte[] buf, int i) {
+        return (buf[i] & 0xFF) | (buf[i + 1] & 0xFF) << 8 | (buf[i + 2] & 0xFF) << 16 | (buf[i + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,178 @@
+package net.jhorstmann.extsortcollect;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * File channel that keeps its contents in a heap array, used by the in-memory spill storage. Such a channel can not
+ * be mapped, so the merge reads it through buffers. All operations are synchronized so that positional reads from
+ * prefetch threads see the data written before.
+ */
+class MemoryFileChannel extends FileChannel {
+    private static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+    private byte[] data = new byte[4096];
+    private int size;
+    private int position;
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        int read = read(dst, position);
+        if (read > 0) {
+            position += read;
+        }
+        return read;
+    }
+
+    @Override
+    public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int read = read(dsts[i]);
+            if (read < 0) {
+                return total == 0 ? -1 : total;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        int written = write(src, position);
+        position += written;
+        return written;
+    }
+
+    @Override
+    public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += write(srcs[i]);
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized long position() {
+        return position;
+    }
+
+    @Override
+    public synchronized FileChannel position(long newPosition) throws IOException {
+        this.position = checkedPosition(newPosition);
+        return this;
+    }
+
+    @Override
+    public synchronized long size() {
+        return size;
+    }
+
+    @Override
+    public synchronized FileChannel truncate(long newSize) throws IOException {
+        if (newSize < size) {
+            this.size = (int) newSize;
+        }
+        if (position > newSize) {
+            this.position = (int) newSize;
+        }
+        return this;
+    }
+
+    @Override
+    public void force(boolean metaData) {
+    }
+
+    @Override
+    public synchronized long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        if (position >= size) {
+            return 0;
+        }
+        int length = (int) Math.min(count, size - position);
+        return target.write(ByteBuffer.wrap(data, (int) position, length));
+    }
+
+    @Override
+    public synchronized long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        if (position > size) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, 64 * 1024));
+        long total = 0;
+        while (total < count) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - total));
+            int read = src.read(buffer);
+            if (read <= 0) {
+                break;
+            }
+            buffer.flip();
+            total += write(buffer, position + total);
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst, long position) throws IOException {
+        if (position >= size) {
+            return -1;
+        }
+        int length = (int) Math.min(dst.remaining(), size - position);
+        dst.put(data, (int) position, length);
+        return length;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src, long position) throws IOException {
+        int start = checkedPosition(position);
+        int length = src.remaining();
+        int end = checkedPosition((long) start + length);
+        if (end > data.length) {
+            data = Arrays.copyOf(data, (int) Math.min(MAX_SIZE, Math.max(end, 2L * data.length)));
+        }
+        if (start > size) {
+            Arrays.fill(data, size, start, (byte) 0);
+        }
+        src.get(data, start, length);
+        size = Math.max(size, end);
+        return length;
+    }
+
+    private static int checkedPosition(long position) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("negative position");
+        }
+        if (position > MAX_SIZE) {
+            throw new IOException("In-memory spill file can not grow beyond " + MAX_SIZE + " bytes");
+        }
+        return (int) position;
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) {
+        throw new UnsupportedOperationException("In-memory spill files can not be mapped");
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    protected synchronized void implCloseChannel() {
+        this.data = null;
+        this.size = 0;
+    }
+}
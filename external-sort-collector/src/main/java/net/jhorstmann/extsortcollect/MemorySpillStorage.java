@@ -0,0 +1,33 @@
+package net.jhorstmann.extsortcollect;
+
+import java.nio.channels.FileChannel;
+
+/**
+ * Keeps spill files in memory, mainly for tests. The files can not be mapped, so the merge always uses buffered
+ * reads.
+ */
+class MemorySpillStorage implements ExternalSortCollectors.SpillStorage {
+    private final int stripes;
+
+    MemorySpillStorage(int stripes) {
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("number of stripes must be positive");
+        }
+        this.stripes = stripes;
+    }
+
+    @Override
+    public FileChannel createSpillFile() {
+        return new MemoryFileChannel();
+    }
+
+    @Override
+    public int getStripeCount() {
+        return stripes;
+    }
+
+    @Override
+    public boolean isMappable() {
+        return false;
+    }
+}
@@ -0,0 +1,103 @@
+package net.jhorstmann.extsortcollect;
+
+import java.util.ArrayList;
+import java.util.Spliterator;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * Joins two spliterators that are sorted by the same key. The elements of the right side that are equal to the
+ * current left element are buffered, so the memory usage is bounded by the largest group of equal right elements.
+ */
+class MergeJoinSpliterator<A, B, R> implements Spliterator<R> {
+    private final Spliterator<A> left;
+    private final Spliterator<B> right;
+    private final ToIntBiFunction<? super A, ? super B> keyComparator;
+    private final BiFunction<? super A, ? super B, ? extends R> joiner;
+    // emit left elements without a matching right element, joined with null
+    private final boolean outer;
+    private final Consumer<A> setLeft = elem -> this.current = elem;
+    private final Consumer<B> setRight = elem -> this.nextRight = elem;
+    // right elements equal to the current left element
+    private final ArrayList<B> group = new ArrayList<>();
+    private A current;
+    private int groupIndex;
+    private B nextRight;
+    private boolean hasNextRight;
+    private boolean rightFinished;
+
+    MergeJoinSpliterator(Spliterator<A> left, Spliterator<B> right, ToIntBiFunction<? super A, ? super B> keyComparator,
+                         BiFunction<? super A, ? super B, ? extends R> joiner, boolean outer) {
+        this.left = left;
+        this.right = right;
+        this.keyComparator = keyComparator;
+        this.joiner = joiner;
+        this.outer = outer;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super R> action) {
+        while (true) {
+            if (groupIndex < group.size()) {
+                action.accept(joiner.apply(current, group.get(groupIndex++)));
+                return true;
+            }
+            if (!left.tryAdvance(setLeft)) {
+                return false;
+            }
+            groupIndex = 0;
+            // consecutive equal left elements are joined with the same group
+            if (group.isEmpty() || keyComparator.applyAsInt(current, group.get(0)) != 0) {
+                if (!outer && rightFinished && !hasNextRight) {
+                    // no later left element can have a match
+                    group.clear();
+                    return false;
+                }
+                fillGroup();
+            }
+            if (group.isEmpty() && outer) {
+                action.accept(joiner.apply(current, null));
+                return true;
+            }
+        }
+    }
+
+    private void fillGroup() {
+        group.clear();
+        while (hasNextRight || advanceRight()) {
+            int res = keyComparator.applyAsInt(current, nextRight);
+            if (res < 0) {
+                break;
+            }
+            if (res == 0) {
+                group.add(nextRight);
+            }
+            hasNextRight = false;
+            nextRight = null;
+        }
+    }
+
+    private boolean advanceRight() {
+        if (!rightFinished) {
+            hasNextRight = right.tryAdvance(setRight);
+            rightFinished = !hasNextRight;
+        }
+        return hasNextRight;
+    }
+
+    @Override
+    public Spliterator<R> trySplit() {
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return Spliterator.ORDERED;
+    }
+}
@@ -0,0 +1,29 @@
+package net.jhorstmann.extsortcollect;
+
+import java.io.Closeable;
+import java.util.List;
+
+/**
+ * Orders chunks by their current element for the k-way merge.
+ */
+interface MergeQueue<T> extends Closeable {
+
+    /**
+     * Returns the chunk with the smallest current element or {@code null} if all chunks are exhausted.
+     */
+    ReadableChunk<T> peek();
+
+    /**
+     * Restores the order after the current element of the chunk returned by {@link #peek()} was consumed.
+     * Exhausted chunks are closed and removed.
+     */
+    void update();
+
+    /**
+     * Returns the chunks that are not yet exhausted.
+     */
+    List<ReadableChunk<T>> chunks();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,222 @@
+package net.jhorstmann.extsortcollect;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Serializes elements into a direct buffer as they are added and sorts an array of key prefixes together with an
+ * array of pointers to the records. A pointer holds the offset of a record in the upper and its length in the lower
+ * 32 bits, so pointers are ordered like the records were added and serve as the tie-break that keeps the sort stable.
+ * Records are only deserialized for comparison if their key prefixes are equal and not complete.
+ */
+class OffHeapRunBuffer<T> implements RunBuffer<T> {
+    private static final Logger LOG = LoggerFactory.getLogger(ExternalSortCollectors.class);
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private final ExternalSortCollectors.Serializer<T> serializer;
+    private final ExternalSortCollectors.KeySerializer<T> keySerializer;
+    private final boolean keyComplete;
+    private final int maxItems;
+    private final int maxRecordSize;
+    private ByteBuffer arena;
+    private ByteBuffer view1;
+    private ByteBuffer view2;
+    private long[] keys;
+    private long[] pointers;
+    private int size;
+    private Comparator<T> comparator;
+
+    OffHeapRunBuffer(ExternalSortCollectors.KeySerializer<T> keySerializer, int maxItems, int maxRecordSize, int arenaSize) {
+        this.serializer = keySerializer;
+        this.keySerializer = keySerializer;
+        this.keyComplete = keySerializer.isKeyPrefixComplete();
+        this.maxItems = maxItems;
+        this.maxRecordSize = maxRecordSize;
+        this.arena = ByteBuffer.allocateDirect(arenaSize);
+        this.view1 = arena.duplicate();
+        this.view2 = arena.duplicate();
+        this.keys = new long[Math.min(maxItems, INITIAL_CAPACITY)];
+        this.pointers = new long[keys.length];
+    }
+
+    @Override
+    public void add(T elem) {
+        if (size == keys.length) {
+            int capacity = (int) Math.min(maxItems, keys.length + (long) (keys.length >> 1) + 1);
+            this.keys = Arrays.copyOf(keys, capacity);
+            this.pointers = Arrays.copyOf(pointers, capacity);
+        }
+        ByteBuffer arena = this.arena;
+        int offset = arena.position();
+        serializer.write(arena, elem);
+        keys[size] = keySerializer.keyPrefix(elem);
+        pointers[size] = ((long) offset << 32) | (arena.position() - offset);
+        size++;
+    }
+
+    @Override
+    public boolean isFull() {
+        return size == maxItems || arena.remaining() < maxRecordSize;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void sort(Comparator<T> comparator) {
+        long t1 = System.currentTimeMillis();
+
+        if (size >= RadixSort.THRESHOLD) {
+            // radix sort is stable, only records with equal incomplete prefixes remain to be compared
+            RadixSort.sort(keys, pointers, size, Long.BYTES);
+            if (!keyComplete) {
+                this.comparator = comparator;
+                sortEqualPrefixes();
+                this.comparator = null;
+            }
+        } else if (size > 1) {
+            this.comparator = comparator;
+            long[] auxKeys = Arrays.copyOf(keys, size);
+            long[] auxPointers = Arrays.copyOf(pointers, size);
+            mergeSort(auxKeys, auxPointers, keys, pointers, 0, size);
+            this.comparator = null;
+        }
+
+        if (LOG.isTraceEnabled()) {
+            long t2 = System.currentTimeMillis();
+            LOG.trace("Sorted [{}] off-heap records with [{}] bytes in [{}ms]", size, arena.position(), t2 - t1);
+        }
+    }
+
+    private void sortEqualPrefixes() {
+        long[] keys = this.keys;
+        long[] pointers = this.pointers;
+        long[] auxKeys = null;
+        long[] auxPointers = null;
+        for (int from = 0, to; from < size; from = to) {
+            long key = keys[from];
+            for (to = from + 1; to < size && keys[to] == key; to++) {
+            }
+            if (to - from > 1) {
+                if (auxKeys == null) {
+                    auxKeys = Arrays.copyOf(keys, size);
+                    auxPointers = Arrays.copyOf(pointers, size);
+                }
+                mergeSort(auxKeys, auxPointers, keys, pointers, from, to);
+            }
+        }
+    }
+
+    private int compare(long k1, long p1, long k2, long p2) {
+        int res = Long.compareUnsigned(k1, k2);
+        if (res == 0 && !keyComplete) {
+            res = comparator.compare(read(view1, p1), read(view2, p2));
+        }
+        return res != 0 ? res : Long.compare(p1, p2);
+    }
+
+    private ByteBuffer record(ByteBuffer view, long pointer) {
+        int offset = (int) (pointer >>> 32);
+        view.limit(offset + (int) pointer);
+        view.position(offset);
+        return view;
+    }
+
+    private T read(ByteBuffer view, long pointer) {
+        return serializer.read(record(view, pointer));
+    }
+
+    private void mergeSort(long[] srcKeys, long[] src, long[] dstKeys, long[] dst, int from, int to) {
+        if (to - from <= INSERTION_SORT_THRESHOLD) {
+            insertionSort(dstKeys, dst, from, to);
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(dstKeys, dst, srcKeys, src, from, mid);
+        mergeSort(dstKeys, dst, srcKeys, src, mid, to);
+
+        if (compare(srcKeys[mid - 1], src[mid - 1], srcKeys[mid], src[mid]) <= 0) {
+            System.arraycopy(srcKeys, from, dstKeys, from, to - from);
+            System.arraycopy(src, from, dst, from, to - from);
+            return;
+        }
+        for (int i = from, p = from, q = mid; i < to; i++) {
+            if (q >= to || (p < mid && compare(srcKeys[p], src[p], srcKeys[q], src[q]) <= 0)) {
+                dstKeys[i] = srcKeys[p];
+                dst[i] = src[p++];
+            } else {
+                dstKeys[i] = srcKeys[q];
+                dst[i] = src[q++];
+            }
+        }
+    }
+
+    private void insertionSort(long[] keys, long[] pointers, int from, int to) {
+        for (int i = from + 1; i < to; i++) {
+            long key = keys[i];
+            long pointer = pointers[i];
+            int j = i - 1;
+            while (j >= from && compare(keys[j], pointers[j], key, pointer) > 0) {
+                keys[j + 1] = keys[j];
+                pointers[j + 1] = pointers[j];
+                j--;
+            }
+            keys[j + 1] = key;
+            pointers[j + 1] = pointer;
+        }
+    }
+
+    @Override
+    public void writeTo(ChunkWriter<T> writer, int count) throws IOException {
+        ByteBuffer view = this.view1;
+        for (int i = 0; i < count; i++) {
+            writer.write(keys[i], record(view, pointers[i]));
+        }
+    }
+
+    @Override
+    public void forEach(Consumer<? super T> action) {
+        ByteBuffer view = this.view1;
+        for (int i = 0; i < size; i++) {
+            action.accept(read(view, pointers[i]));
+        }
+    }
+
+    @Override
+    public Stream<T> stream() {
+        ByteBuffer arena = this.arena;
+        long[] pointers = this.pointers;
+        return IntStream.range(0, size)
+                .mapToObj(i -> read(arena.duplicate(), pointers[i]))
+                .onClose(this::release);
+    }
+
+    @Override
+    public void clear() {
+        arena.clear();
+        size = 0;
+    }
+
+    @Override
+    public void release() {
+        ByteBuffer arena = this.arena;
+        if (arena != null) {
+            this.arena = null;
+            this.view1 = null;
+            this.view2 = null;
+            Cleaner.clean(arena);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package net.jhorstmann.extsortcollect;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Accumulator for primitive values that are sorted as longs. Runs are sorted in a {@code long[]} and spilled as
+ * fixed width values of {@code width} bytes, which avoids boxing, serializers and comparators entirely.
+ */
+class PrimitiveAccumulator implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(ExternalSortCollectors.class);
+
+    private static final int INITIAL_CAPACITY = 1024;
+    static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private final int width;
+    private final int maxItems;
+    private final int writeBufferSize;
+    private final ExternalSortCollectors.SpillStorage spillStorage;
+    private long[] data;
+    private int size;
+    private FileChannel[] runFiles;
+    private long[] runOffsets;
+    private long[] runCounts;
+    private int runs;
+    private long totalSize;
+    private ByteBuffer writeBuffer;
+    // all spill files referenced by runs, new runs are appended to the stripes in turn
+    private final ArrayList<FileChannel> files;
+    private final FileChannel[] stripes;
+    private int nextStripe;
+
+    PrimitiveAccumulator(int width, int maxItems, int writeBufferSize, ExternalSortCollectors.SpillStorage spillStorage) {
+        this.width = width;
+        this.maxItems = maxItems;
+        this.writeBufferSize = writeBufferSize;
+        this.spillStorage = spillStorage;
+        this.stripes = new FileChannel[Math.max(1, spillStorage.getStripeCount())];
+        this.data = new long[Math.min(maxItems, INITIAL_CAPACITY)];
+        this.runFiles = new FileChannel[16];
+        this.runOffsets = new long[16];
+        this.runCounts = new long[16];
+        this.files = new ArrayList<>();
+    }
+
+    void add(long value) {
+        addWithoutSize(value);
+        totalSize++;
+    }
+
+    private void addWithoutSize(long value) {
+        long[] data = this.data;
+        if (size == data.length) {
+            int capacity = (int) Math.min(maxItems, data.length + (long) (data.length >> 1) + 1);
+            this.data = data = Arrays.copyOf(data, capacity);
+        }
+        data[size++] = value;
+        if (size == maxItems) {
+            spill();
+        }
+    }
+
+    private void spill() {
+        try {
+            try {
+                sort();
+                writeRun(data, size);
+                size = 0;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } catch (Throwable t) {
+            try {
+                close();
+            } catch (Throwable t2) {
+                t.addSuppressed(t2);
+            }
+            throw t;
+        }
+    }
+
+    private void sort() {
+        if (size >= RadixSort.THRESHOLD) {
+            RadixSort.sortSigned(data, size, width);
+        } else {
+            Arrays.sort(data, 0, size);
+        }
+    }
+
+    private void writeRun(long[] data, int size) throws IOException {
+        long t1 = System.currentTimeMillis();
+
+        FileChannel file = spillFile();
+        if (writeBuffer == null) {
+            this.writeBuffer = ByteBuffer.allocateDirect(writeBufferSize - writeBufferSize % width);
+        }
+        addRun(file, file.position(), size);
+
+        ByteBuffer buffer = this.writeBuffer;
+        int width = this.width;
+        buffer.clear();
+        for (int i = 0; i < size; i++) {
+            if (width == Long.BYTES) {
+                buffer.putLong(data[i]);
+            } else {
+                buffer.putInt((int) data[i]);
+            }
+            if (!buffer.hasRemaining()) {
+                flush(file, buffer);
+            }
+        }
+        flush(file, buffer);
+
+        if (LOG.isTraceEnabled()) {
+            long t2 = System.currentTimeMillis();
+            LOG.trace("Wrote run of [{}] values in [{}ms]", size, t2 - t1);
+        }
+    }
+
+    /**
+     * Returns the spill file for the next run, runs are written to the stripes of the spill storage in turn.
+     */
+    private FileChannel spillFile() throws IOException {
+        int stripe = nextStripe;
+        nextStripe = stripe + 1 == stripes.length ? 0 : stripe + 1;
+        FileChannel file = stripes[stripe];
+        if (file == null) {
+            // the stripes are created together, so that they end up on different devices
+            FileChannel[] created = spillStorage.createStripes();
+            System.arraycopy(created, 0, stripes, 0, stripes.length);
+            files.addAll(Arrays.asList(created));
+            file = stripes[stripe];
+        }
+        return file;
+    }
+
+    private static void flush(FileChannel file, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            file.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void addRun(FileChannel file, long offset, long count) {
+        if (runs == runOffsets.length) {
+            runFiles = Arrays.copyOf(runFiles, runs * 2);
+            runOffsets = Arrays.copyOf(runOffsets, runs * 2);
+            runCounts = Arrays.copyOf(runCounts, runs * 2);
+        }
+        runFiles[runs] = file;
+        runOffsets[runs] = offset;
+        runCounts[runs] = count;
+        runs++;
+    }
+
+    PrimitiveAccumulator combine(PrimitiveAccumulator acc) {
+        for (int i = 0; i < acc.size; i++) {
+            addWithoutSize(acc.data[i]);
+        }
+
+        // runs refer to their spill file, so the files of the other accumulator are taken over without copying
+        if (!acc.files.isEmpty()) {
+            files.addAll(acc.files);
+            for (int i = 0; i < acc.runs; i++) {
+                addRun(acc.runFiles[i], acc.runOffsets[i], acc.runCounts[i]);
+            }
+            acc.files.clear();
+            Arrays.fill(acc.stripes, null);
+            acc.releaseWriteBuffer();
+        }
+        totalSize += acc.totalSize;
+
+        return this;
+    }
+
+    LongStream finish() {
+        sort();
+        if (files.isEmpty()) {
+            return Arrays.stream(data, 0, size);
+        }
+        try {
+            if (size > 0) {
+                writeRun(data, size);
+            }
+        } catch (IOException e) {
+            try {
+                close();
+            } catch (Throwable t2) {
+                e.addSuppressed(t2);
+            }
+            throw new UncheckedIOException(e);
+        }
+        this.data = null;
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Merging [{}] runs of [{}] values", runs, totalSize);
+        }
+
+        LongMergeSpliterator spliterator = new LongMergeSpliterator(files.toArray(new FileChannel[0]), width,
+                Arrays.copyOf(runFiles, runs), Arrays.copyOf(runOffsets, runs), Arrays.copyOf(runCounts, runs), READ_BUFFER_SIZE);
+        this.files.clear();
+        Arrays.fill(stripes, null);
+        releaseWriteBuffer();
+
+        return StreamSupport.longStream(spliterator, false)
+                .onClose(spliterator::close);
+    }
+
+    private void releaseWriteBuffer() {
+        ByteBuffer writeBuffer = this.writeBuffer;
+        if (writeBuffer != null) {
+            Cleaner.clean(writeBuffer);
+            this.writeBuffer = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        releaseWriteBuffer();
+        Arrays.fill(stripes, null);
+        IOException failure = null;
+        for (FileChannel file : files) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        files.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package net.jhorstmann.extsortcollect;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Stable least significant digit radix sort of unsigned long keys, one byte per pass. Passes in which all keys have
+ * the same digit are skipped, so keys that only use their lower bytes need fewer passes.
+ * <p>
+ * The parallel variant divides the input into blocks, each block counts its digits and scatters its elements to
+ * the offsets that the prefix sum over all blocks reserved for it, which keeps the sort stable.
+ */
+class RadixSort {
+    static final int THRESHOLD = 256;
+    private static final int RADIX = 256;
+    private static final int MIN_PARALLEL_BLOCK_SIZE = 1 << 14;
+
+    private RadixSort() {
+    }
+
+    static void sort(long[] keys, Object[] data, int size, boolean parallel) {
+        sort(keys, data, size, parallel ? Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism(), size / MIN_PARALLEL_BLOCK_SIZE)) : 1);
+    }
+
+    static void sort(long[] keys, Object[] data, int size, int blocks) {
+        long[] srcKeys = keys;
+        Object[] src = data;
+        long[] dstKeys = new long[size];
+        Object[] dst = new Object[size];
+        int[][] counts = new int[blocks][RADIX];
+
+        for (int shift = 0; shift < Long.SIZE; shift += Byte.SIZE) {
+            long[] fromKeys = srcKeys;
+            Object[] from = src;
+            long[] toKeys = dstKeys;
+            Object[] to = dst;
+            int pass = shift;
+
+            forEachBlock(blocks, block -> count(fromKeys, blockStart(block, blocks, size), blockStart(block + 1, blocks, size), pass, counts[block]));
+            if (!offsets(counts, size)) {
+                continue;
+            }
+            forEachBlock(blocks, block -> {
+                int[] offsets = counts[block];
+                for (int i = blockStart(block, blocks, size), end = blockStart(block + 1, blocks, size); i < end; i++) {
+                    int j = offsets[(int) (fromKeys[i] >>> pass) & 0xFF]++;
+                    toKeys[j] = fromKeys[i];
+                    to[j] = from[i];
+                }
+            });
+
+            srcKeys = toKeys;
+            src = to;
+            dstKeys = fromKeys;
+            dst = from;
+        }
+
+        if (srcKeys != keys) {
+            System.arraycopy(srcKeys, 0, keys, 0, size);
+            System.arraycopy(src, 0, data, 0, size);
+        }
+    }
+
+    /**
+     * Sorts the lower {@code bytes} bytes of {@code keys} and permutes {@code values} accordingly, if not null.
+     */
+    static void sort(long[] keys, long[] values, int size, int bytes) {
+        long[] srcKeys = keys;
+        long[] src = values;
+        long[] dstKeys = new long[size];
+        long[] dst = values == null ? null : new long[size];
+        int[][] counts = new int[1][RADIX];
+
+        for (int shift = 0; shift < bytes * Byte.SIZE; shift += Byte.SIZE) {
+            count(srcKeys, 0, size, shift, counts[0]);
+            if (!offsets(counts, size)) {
+                continue;
+            }
+            int[] offsets = counts[0];
+            for (int i = 0; i < size; i++) {
+                int j = offsets[(int) (srcKeys[i] >>> shift) & 0xFF]++;
+                dstKeys[j] = srcKeys[i];
+                if (dst != null) {
+                    dst[j] = src[i];
+                }
+            }
+
+            long[] tmpKeys = srcKeys;
+            long[] tmp = src;
+            srcKeys = dstKeys;
+            src = dst;
+            dstKeys = tmpKeys;
+            dst = tmp;
+        }
+
+        if (srcKeys != keys) {
+            System.arraycopy(srcKeys, 0, keys, 0, size);
+            if (values != null) {
+                System.arraycopy(src, 0, values, 0, size);
+            }
+        }
+    }
+
+    /**
+     * Sorts signed values that fit into {@code bytes} bytes.
+     */
+    static void sortSigned(long[] values, int size, int bytes) {
+        int unused = Long.SIZE - bytes * Byte.SIZE;
+        long sign = 1L << (bytes * Byte.SIZE - 1);
+        long mask = -1L >>> unused;
+        for (int i = 0; i < size; i++) {
+            values[i] = (values[i] ^ sign) & mask;
+        }
+        sort(values, (long[]) null, size, bytes);
+        for (int i = 0; i < size; i++) {
+            values[i] = ((values[i] ^ sign) << unused) >> unused;
+        }
+    }
+
+    private static void count(long[] keys, int from, int to, int shift, int[] counts) {
+        Arrays.fill(counts, 0);
+        for (int i = from; i < to; i++) {
+            counts[(int) (keys[i] >>> shift) & 0xFF]++;
+        }
+    }
+
+    /**
+     * Turns the digit counts of all blocks into the start offset of each block and digit. Returns false if all keys
+     * have the same digit.
+     */
+    private static boolean offsets(int[][] counts, int size) {
+        int offset = 0;
+        for (int digit = 0; digit < RADIX; digit++) {
+            int total = 0;
+            for (int[] count : counts) {
+                total += count[digit];
+            }
+            if (total == size) {
+                return false;
+            }
+            for (int[] count : counts) {
+                int c = count[digit];
+                count[digit] = offset;
+                offset += c;
+            }
+        }
+        return true;
+    }
+
+    private static int blockStart(int block, int blocks, int size) {
+        return (int) ((long) size * block / blocks);
+    }
+
+    private static void forEachBlock(int blocks, IntConsumer action) {
+        if (blocks == 1) {
+            action.accept(0);
+        } else {
+            IntStream.range(0, blocks).parallel().forEach(action);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package net.jhorstmann.extsortcollect;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Positions the chunks of a merge close to a given rank of the merged order without reading the records before it.
+ * <p>
+ * The search works on the samples of the sparse indexes. For a sample, the number of samples of each chunk that
+ * precede it in the merged order bounds the number of records of that chunk that precede it, to within one index
+ * interval. A multi-sequence selection, using the weighted median of the middle samples of all chunks as pivot, finds
+ * the last sample whose bound does not exceed the rank in {@code O(log n)} rounds of {@code k} binary searches over
+ * the indexes. All chunks are then positioned at that sample, which leaves less than {@code (k + 1) * indexInterval}
+ * records to be skipped by the merge.
+ */
+class RankSelection {
+
+    private RankSelection() {
+    }
+
+    /**
+     * Discards the records of the given chunks that precede the selected sample, equal records of different chunks
+     * are merged in the order of the list. Nothing is discarded if a chunk has no usable index.
+     *
+     * @return the number of discarded records, which is not larger than {@code rank}
+     */
+    static <T> long seek(List<ReadableChunk<T>> chunks, Comparator<T> comparator, long rank) {
+        int k = chunks.size();
+        int[] lo = new int[k];
+        int[] hi = new int[k];
+        for (int i = 0; i < k; i++) {
+            ReadableChunk<T> chunk = chunks.get(i);
+            if (chunk.getCount() == 0) {
+                continue;
+            }
+            if (!chunk.isIndexed()) {
+                return 0;
+            }
+            hi[i] = chunk.getIndexSize();
+        }
+
+        Object[] samples = new Object[k];
+        Integer[] candidates = new Integer[k];
+        int[] preceding = new int[k];
+        int bestChunk = -1;
+        int bestEntry = -1;
+        T best = null;
+        while (true) {
+            int n = 0;
+            long weight = 0;
+            for (int i = 0; i < k; i++) {
+                if (lo[i] < hi[i]) {
+                    samples[i] = chunks.get(i).sampleAt((lo[i] + hi[i]) >>> 1);
+                    candidates[n++] = i;
+                    weight += hi[i] - lo[i];
+                }
+            }
+            if (n == 0) {
+                break;
+            }
+
+            Arrays.sort(candidates, 0, n, (i, j) -> compareSamples(comparator, samples, i, j));
+            int pivot = candidates[n - 1];
+            long cumulative = 0;
+            for (int c = 0; c < n; c++) {
+                int i = candidates[c];
+                cumulative += hi[i] - lo[i];
+                if (2 * cumulative >= weight) {
+                    pivot = i;
+                    break;
+                }
+            }
+            int pivotEntry = (lo[pivot] + hi[pivot]) >>> 1;
+            @SuppressWarnings("unchecked")
+            T key = (T) samples[pivot];
+
+            long bound = 0;
+            for (int i = 0; i < k; i++) {
+                ReadableChunk<T> chunk = chunks.get(i);
+                preceding[i] = i == pivot ? pivotEntry : precedingSamples(chunk, comparator, key, i < pivot);
+                bound += Math.min((long) preceding[i] * chunk.getIndexInterval(), chunk.getCount());
+            }
+
+            if (bound <= rank) {
+                if (best == null || precedes(comparator, best, bestChunk, bestEntry, key, pivot, pivotEntry)) {
+                    best = key;
+                    bestChunk = pivot;
+                    bestEntry = pivotEntry;
+                }
+                for (int i = 0; i < k; i++) {
+                    lo[i] = Math.max(lo[i], i == pivot ? pivotEntry + 1 : preceding[i]);
+                }
+            } else {
+                for (int i = 0; i < k; i++) {
+                    hi[i] = Math.min(hi[i], preceding[i]);
+                }
+            }
+        }
+
+        if (best == null) {
+            return 0;
+        }
+        long skipped = 0;
+        for (int i = 0; i < k; i++) {
+            ReadableChunk<T> chunk = chunks.get(i);
+            if (chunk.getCount() == 0) {
+                continue;
+            }
+            ReadableChunk.Position position = i == bestChunk ? chunk.indexPosition(bestEntry)
+                    : i < bestChunk ? chunk.upperBound(best) : chunk.lowerBound(best);
+            chunk.skipTo(position);
+            skipped += position.ordinal;
+        }
+        return skipped;
+    }
+
+    /**
+     * Number of samples of {@code chunk} that are less than {@code key}, or not greater if {@code inclusive} is true.
+     */
+    private static <T> int precedingSamples(ReadableChunk<T> chunk, Comparator<T> comparator, T key, boolean inclusive) {
+        int bound = inclusive ? 1 : 0;
+        int lo = 0;
+        int hi = chunk.getIndexSize();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (comparator.compare(chunk.sampleAt(mid), key) < bound) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> int compareSamples(Comparator<T> comparator, Object[] samples, int i, int j) {
+        int res = comparator.compare((T) samples[i], (T) samples[j]);
+        return res != 0 ? res : Integer.compare(i, j);
+    }
+
+    private static <T> boolean precedes(Comparator<T> comparator, T key1, int chunk1, int entry1, T key2, int chunk2, int entry2) {
+        int res = comparator.compare(key1, key2);
+        if (res != 0) {
+            return res < 0;
+        }
+        return chunk1 != chunk2 ? chunk1 < chunk2 : entry1 < entry2;
+    }
+}
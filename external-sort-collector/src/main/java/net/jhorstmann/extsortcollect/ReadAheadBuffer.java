@@ -0,0 +1,146 @@
+package net.jhorstmann.extsortcollect;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Reads a range of a file through a direct buffer that is refilled by positional reads, as an alternative to mapping
+ * the range. {@link #available()} returns a buffer with at least {@code headroom} remaining bytes, or all remaining
+ * bytes of the range, so that records or frames of at most that size are never cut by a refill.
+ * <p>
+ * With an executor, the next block is read in the background into a second buffer while the current one is consumed.
+ * Blocks are read behind {@code headroom} bytes of free space, where the unread tail of the current buffer is copied
+ * when switching buffers.
+ */
+class ReadAheadBuffer implements Closeable {
+    private final FileChannel file;
+    private final long end;
+    private final int headroom;
+    private final Executor executor;
+    private long position;
+    private ByteBuffer current;
+    private ByteBuffer next;
+    private CompletableFuture<Void> pending;
+
+    ReadAheadBuffer(FileChannel file, long offset, long length, int blockSize, int headroom, Executor executor) {
+        this.file = file;
+        this.position = offset;
+        this.end = offset + length;
+        this.headroom = headroom;
+        this.executor = executor;
+
+        int capacity = headroom + (int) Math.min(blockSize, length);
+        this.current = ByteBuffer.allocateDirect(capacity);
+        this.current.limit(0);
+        if (executor != null) {
+            this.next = ByteBuffer.allocateDirect(capacity);
+            prefetch();
+        }
+    }
+
+    ByteBuffer available() {
+        ByteBuffer current = this.current;
+        if (current.remaining() >= headroom || (position == end && pending == null)) {
+            return current;
+        }
+
+        if (executor == null) {
+            current.compact();
+            int length = (int) Math.min(current.remaining(), end - position);
+            current.limit(current.position() + length);
+            try {
+                readFully(file, current, position);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            position += length;
+            current.position(0);
+            return current;
+        }
+
+        // blocks smaller than the headroom may take more than one switch
+        while (current.remaining() < headroom && pending != null) {
+            try {
+                pending.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof UncheckedIOException) {
+                    throw (UncheckedIOException) cause;
+                }
+                throw e;
+            } finally {
+                this.pending = null;
+            }
+
+            ByteBuffer next = this.next;
+            int start = headroom - current.remaining();
+            ByteBuffer tail = next.duplicate();
+            tail.position(start);
+            tail.put(current);
+            next.position(start);
+
+            this.next = current;
+            this.current = current = next;
+            prefetch();
+        }
+        return current;
+    }
+
+    private void prefetch() {
+        if (position == end) {
+            return;
+        }
+        ByteBuffer buffer = this.next;
+        long from = this.position;
+        int length = (int) Math.min(buffer.capacity() - headroom, end - from);
+        this.position = from + length;
+
+        buffer.limit(headroom + length);
+        buffer.position(headroom);
+        this.pending = CompletableFuture.runAsync(() -> {
+            try {
+                readFully(file, buffer, from);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+
+    private static void readFully(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position() - start) < 0) {
+                throw new IOException("Unexpected end of spill file");
+            }
+        }
+        buffer.position(start);
+    }
+
+    @Override
+    public void close() {
+        CompletableFuture<Void> pending = this.pending;
+        if (pending != null) {
+            // the background read has to finish before its buffer is released
+            try {
+                pending.join();
+            } catch (CompletionException e) {
+                // irrelevant since we are closing anyway
+            }
+            this.pending = null;
+        }
+        if (current != null) {
+            Cleaner.clean(current);
+            this.current = null;
+        }
+        if (next != null) {
+            Cleaner.clean(next);
+            this.next = null;
+        }
+    }
+}
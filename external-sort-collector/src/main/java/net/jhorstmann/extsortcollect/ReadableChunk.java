@@ -7,18 +7,70 @@ import java.util.Iterator;
 
 class ReadableChunk<T> implements Comparable<ReadableChunk<T>>, Iterator<T>, Closeable {
     private final ExternalSortCollectors.Serializer<T> serializer;
+    private final ExternalSortCollectors.KeySerializer<T> keySerializer;
+    private final boolean keyComplete;
+    private final ExternalSortCollectors.BlockCodec codec;
     private final Comparator<T> comparator;
+    private final Chunk chunk;
     private final int stableOrder;
-    private Cleaner cleaner;
+    private final ByteBuffer[] segments;
+    private final Cleaner[] cleaners;
+    private final ReadAheadBuffer reader;
+    private final long endOrdinal;
+    private int segment;
     private ByteBuffer buffer;
+    private long ordinal;
+    private boolean positioned;
+    private int dataPosition;
+    private long key;
     private T data;
+    private byte[] compressed;
+    // chunks without usable index end at the first record that is not less than this key
+    private T endKey;
 
-    ReadableChunk(ExternalSortCollectors.Serializer<T> serializer, Comparator<T> comparator, ByteBuffer buffer, Cleaner cleaner, int stableOrder) {
+    /**
+     * Position of a record inside a chunk, {@code ordinal} is the number of records preceding it.
+     */
+    static final class Position {
+        final int segment;
+        final int position;
+        final long ordinal;
+
+        Position(int segment, int position, long ordinal) {
+            this.segment = segment;
+            this.position = position;
+            this.ordinal = ordinal;
+        }
+    }
+
+    ReadableChunk(ExternalSortCollectors.Serializer<T> serializer, ExternalSortCollectors.KeySerializer<T> keySerializer, ExternalSortCollectors.BlockCodec codec, Comparator<T> comparator, Chunk chunk, ByteBuffer[] segments, Cleaner[] cleaners, int stableOrder) {
+        this(serializer, keySerializer, codec, comparator, chunk, segments, cleaners, null, stableOrder, 0, 0, chunk.getCount());
+    }
+
+    /**
+     * Reads the chunk through a {@link ReadAheadBuffer} instead of mapped segments. Such chunks have no usable index
+     * and never return a {@link #sample()}, so they are not split.
+     */
+    ReadableChunk(ExternalSortCollectors.Serializer<T> serializer, ExternalSortCollectors.KeySerializer<T> keySerializer, ExternalSortCollectors.BlockCodec codec, Comparator<T> comparator, Chunk chunk, ReadAheadBuffer reader, int stableOrder) {
+        this(serializer, keySerializer, codec, comparator, chunk, new ByteBuffer[]{ByteBuffer.allocate(0)}, new Cleaner[1], reader, stableOrder, 0, 0, chunk.getCount());
+    }
+
+    private ReadableChunk(ExternalSortCollectors.Serializer<T> serializer, ExternalSortCollectors.KeySerializer<T> keySerializer, ExternalSortCollectors.BlockCodec codec, Comparator<T> comparator, Chunk chunk, ByteBuffer[] segments, Cleaner[] cleaners, ReadAheadBuffer reader, int stableOrder, int segment, long ordinal, long endOrdinal) {
         this.serializer = serializer;
+        this.keySerializer = keySerializer;
+        this.keyComplete = keySerializer != null && keySerializer.isKeyPrefixComplete();
+        this.codec = codec;
         this.comparator = comparator;
-        this.cleaner = cleaner;
+        this.chunk = chunk;
+        this.segments = segments;
+        this.cleaners = cleaners;
+        this.reader = reader;
         this.stableOrder = stableOrder;
-        this.buffer = buffer;
+        this.segment = segment;
+        // compressed chunks read their records from the current decompressed block
+        this.buffer = codec == null ? segments[segment] : ByteBuffer.allocate(0);
+        this.ordinal = ordinal;
+        this.endOrdinal = endOrdinal;
     }
 
     @Override
@@ -26,10 +78,106 @@ class ReadableChunk<T> implements Comparable<ReadableChunk<T>>, Iterator<T>, Clo
         this.buffer = null;
         this.data = null;
 
-        Cleaner cleaner = this.cleaner;
+        Cleaner[] cleaners = this.cleaners;
+        for (int i = segment; i < cleaners.length; i++) {
+            releaseSegment(i);
+        }
+        if (reader != null) {
+            reader.close();
+        }
+    }
+
+    private void releaseSegment(int i) {
+        segments[i] = null;
+        Cleaner cleaner = cleaners[i];
         if (cleaner != null) {
             cleaner.close();
-            this.cleaner = null;
+            cleaners[i] = null;
+        }
+    }
+
+    private boolean nextSegment() {
+        if (segment + 1 >= segments.length) {
+            return false;
+        }
+        releaseSegment(segment);
+        segment++;
+        if (codec == null) {
+            this.buffer = segments[segment];
+        }
+        return true;
+    }
+
+    /**
+     * Moves to the next buffer containing records, which is the next segment or the next decompressed block.
+     */
+    private boolean nextBuffer() {
+        if (reader != null) {
+            ByteBuffer source = reader.available();
+            if (codec == null) {
+                this.buffer = source;
+                return source.hasRemaining();
+            } else if (!source.hasRemaining()) {
+                return false;
+            }
+            readBlock(source);
+            return true;
+        }
+        if (codec == null) {
+            return nextSegment();
+        }
+        ByteBuffer source = segments[segment];
+        while (!source.hasRemaining()) {
+            if (!nextSegment()) {
+                return false;
+            }
+            source = segments[segment];
+        }
+        readBlock(source);
+        return true;
+    }
+
+    private void readBlock(ByteBuffer source) {
+        int storedLength = source.getInt();
+        int length = source.getInt();
+
+        ByteBuffer block = this.buffer;
+        if (block.capacity() < length) {
+            block = ByteBuffer.allocate(length);
+        }
+        if (storedLength == length) {
+            source.get(block.array(), 0, length);
+        } else {
+            byte[] compressed = this.compressed;
+            if (compressed == null || compressed.length < storedLength) {
+                this.compressed = compressed = new byte[storedLength];
+            }
+            source.get(compressed, 0, storedLength);
+            codec.decompress(compressed, 0, storedLength, block.array(), 0, length);
+        }
+        block.position(0);
+        block.limit(length);
+        this.buffer = block;
+    }
+
+    /**
+     * Moves to the start of the current record and reads its key prefix, without deserializing the record.
+     */
+    private void position() {
+        if (!positioned) {
+            if (reader != null && codec == null) {
+                // make sure the whole record is buffered
+                this.buffer = reader.available();
+            }
+            ByteBuffer buffer = this.buffer;
+            while (buffer.remaining() == 0 && nextBuffer()) {
+                buffer = this.buffer;
+            }
+            this.dataPosition = buffer.position();
+            if (keySerializer != null) {
+                this.key = buffer.getLong();
+            }
+            this.positioned = true;
         }
     }
 
@@ -37,8 +185,7 @@ class ReadableChunk<T> implements Comparable<ReadableChunk<T>>, Iterator<T>, Clo
         T data = this.data;
 
         if (data == null) {
-            ByteBuffer buffer = this.buffer;
-            buffer.mark();
+            position();
             this.data = data = serializer.read(buffer);
         }
         return data;
@@ -46,22 +193,276 @@ class ReadableChunk<T> implements Comparable<ReadableChunk<T>>, Iterator<T>, Clo
 
     @Override
     public boolean hasNext() {
-        return data != null || buffer.remaining() > 0;
+        if (!hasRecord()) {
+            return false;
+        }
+        return endKey == null || comparator.compare(current(), endKey) < 0;
+    }
+
+    private boolean hasRecord() {
+        if (positioned || buffer.remaining() > 0) {
+            return true;
+        }
+        while (nextBuffer()) {
+            if (buffer.remaining() > 0) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
     public T next() {
         T current = current();
         data = null;
+        positioned = false;
+        ordinal++;
         return current;
     }
 
+    /**
+     * Number of records that were not yet returned by {@link #next()}.
+     */
+    long remaining() {
+        return endOrdinal - ordinal;
+    }
+
+    long countBefore(Position position) {
+        return position.ordinal - ordinal;
+    }
+
+    /**
+     * Returns a sample record from the middle of the remaining records, or {@code null} if the sparse index contains
+     * no entry for the remaining records.
+     */
+    T sample() {
+        if (reader != null) {
+            return null;
+        }
+        int from = firstIndexEntry();
+        int to = lastIndexEntry();
+        if (from >= to) {
+            return null;
+        }
+        return readAt(chunk.getIndexOffset((from + to - 1) >>> 1));
+    }
+
+    private int firstIndexEntry() {
+        int interval = chunk.getIndexInterval();
+        return interval == 0 ? 0 : (int) ((ordinal + interval - 1) / interval);
+    }
+
+    private int lastIndexEntry() {
+        int interval = chunk.getIndexInterval();
+        return interval == 0 ? 0 : (int) Math.min(chunk.getIndexSize(), (endOrdinal + interval - 1) / interval);
+    }
+
+    private T readAt(long offset) {
+        int segment = chunk.findSegment(offset);
+        ByteBuffer view = segments[segment].duplicate();
+        view.limit(view.capacity());
+        view.position(Math.toIntExact(offset - chunk.getSegmentOffset(segment)));
+        return read(view);
+    }
+
+    private T read(ByteBuffer view) {
+        if (keySerializer != null) {
+            view.position(view.position() + Long.BYTES);
+        }
+        return serializer.read(view);
+    }
+
+    /**
+     * Returns true if the chunk is mapped and has a sparse index, so that it can be positioned by
+     * {@link #lowerBound(Object)} and {@link #indexPosition(int)} without reading the records before.
+     */
+    boolean isIndexed() {
+        return reader == null && chunk.getIndexInterval() > 0;
+    }
+
+    int getIndexSize() {
+        return chunk.getIndexSize();
+    }
+
+    int getIndexInterval() {
+        return chunk.getIndexInterval();
+    }
+
+    /**
+     * Number of records of the chunk, including those that were already returned.
+     */
+    long getCount() {
+        return chunk.getCount();
+    }
+
+    /**
+     * Reads the record of the given sparse index entry.
+     */
+    T sampleAt(int entry) {
+        return readAt(chunk.getIndexOffset(entry));
+    }
+
+    /**
+     * Returns the position of the record of the given sparse index entry.
+     */
+    Position indexPosition(int entry) {
+        long offset = chunk.getIndexOffset(entry);
+        int segment = chunk.findSegment(offset);
+        return new Position(segment, Math.toIntExact(offset - chunk.getSegmentOffset(segment)), (long) entry * chunk.getIndexInterval());
+    }
+
+    /**
+     * Finds the position of the first remaining record that is not less than {@code key}, using a binary search over
+     * the sparse index followed by a linear scan of at most one index interval. Compressed chunks have no index and
+     * never return a {@link #sample()}, so they are not split.
+     */
+    Position lowerBound(T key) {
+        return search(key, false);
+    }
+
+    /**
+     * Finds the position of the first remaining record that is greater than {@code key}, like
+     * {@link #lowerBound(Object)}.
+     */
+    Position upperBound(T key) {
+        return search(key, true);
+    }
+
+    private Position search(T key, boolean upper) {
+        int bound = upper ? 1 : 0;
+        Comparator<T> comparator = this.comparator;
+        int segment = this.segment;
+        int position = positioned ? dataPosition : buffer.position();
+        long ordinal = this.ordinal;
+
+        int lo = firstIndexEntry();
+        int hi = lastIndexEntry() - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (comparator.compare(readAt(chunk.getIndexOffset(mid)), key) < bound) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (found >= 0) {
+            long offset = chunk.getIndexOffset(found);
+            segment = chunk.findSegment(offset);
+            position = Math.toIntExact(offset - chunk.getSegmentOffset(segment));
+            ordinal = (long) found * chunk.getIndexInterval();
+        }
+
+        ByteBuffer view = segments[segment].duplicate();
+        view.position(position);
+        while (ordinal < endOrdinal) {
+            while (view.remaining() == 0 && segment + 1 < segments.length) {
+                view = segments[++segment].duplicate();
+            }
+            position = view.position();
+            if (comparator.compare(read(view), key) >= bound) {
+                break;
+            }
+            ordinal++;
+            position = view.position();
+        }
+        return new Position(segment, position, ordinal);
+    }
+
+    /**
+     * Splits off the records before {@code split} into a new chunk with the same stable order, this chunk continues
+     * at {@code split}. Both chunks keep a reference to the shared segments.
+     */
+    ReadableChunk<T> splitAt(Position split) {
+        int first = this.segment;
+        int position = positioned ? dataPosition : buffer.position();
+
+        ByteBuffer[] prefixSegments = new ByteBuffer[split.segment + 1];
+        Cleaner[] prefixCleaners = new Cleaner[split.segment + 1];
+        for (int i = first; i <= split.segment; i++) {
+            ByteBuffer view = segments[i].duplicate();
+            if (i == first) {
+                view.position(position);
+            }
+            if (i == split.segment) {
+                view.limit(split.position);
+            }
+            prefixSegments[i] = view;
+            prefixCleaners[i] = cleaners[i] == null ? null : cleaners[i].reference();
+        }
+        ReadableChunk<T> prefix = new ReadableChunk<>(serializer, keySerializer, codec, comparator, chunk, prefixSegments, prefixCleaners, null, stableOrder, first, ordinal, split.ordinal);
+
+        for (int i = first; i < split.segment; i++) {
+            releaseSegment(i);
+        }
+        this.segment = split.segment;
+        this.buffer = segments[split.segment];
+        this.buffer.position(split.position);
+        this.ordinal = split.ordinal;
+        this.positioned = false;
+        this.data = null;
+
+        return prefix;
+    }
+
+    /**
+     * Discards the records before {@code position}.
+     */
+    void skipTo(Position position) {
+        if (position.ordinal > ordinal) {
+            splitAt(position).close();
+        }
+    }
+
+    /**
+     * Discards the remaining records that are less than {@code key}, chunks without usable index have to read them.
+     */
+    void skipLessThan(T key) {
+        if (isIndexed()) {
+            skipTo(lowerBound(key));
+        } else {
+            while (hasNext() && comparator.compare(current(), key) < 0) {
+                next();
+            }
+        }
+    }
+
+    /**
+     * Ends the chunk before the first remaining record that is not less than {@code key}. Indexed chunks return the
+     * records before that key as a new chunk and close this one, other chunks compare each record to the key.
+     */
+    ReadableChunk<T> endBefore(T key) {
+        if (isIndexed()) {
+            ReadableChunk<T> prefix = splitAt(lowerBound(key));
+            close();
+            return prefix;
+        }
+        this.endKey = key;
+        return this;
+    }
+
+    /**
+     * Returns true if the number of records is only known as an upper bound, because the chunk ends at a key.
+     */
+    boolean hasEndKey() {
+        return endKey != null;
+    }
+
     @Override
     public int compareTo(ReadableChunk<T> o) {
-        T d1 = current();
-        T d2 = o.current();
+        int res;
+        if (keySerializer != null) {
+            position();
+            o.position();
+            res = Long.compareUnsigned(key, o.key);
+            if (res == 0 && !keyComplete) {
+                res = comparator.compare(current(), o.current());
+            }
+        } else {
+            res = comparator.compare(current(), o.current());
+        }
 
-        int res = comparator.compare(d1, d2);
         if (res != 0) {
             return res;
         } else {
@@ -0,0 +1,71 @@
+package net.jhorstmann.extsortcollect;
+
+import java.util.Comparator;
+import java.util.Spliterator;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+
+/**
+ * Combines neighbouring elements of a sorted spliterator that compare equal. The merge splits at a key, with all
+ * elements equal to the key in the suffix, so splits never separate equal elements.
+ */
+class ReducingSpliterator<T> implements Spliterator<T> {
+    private final Spliterator<T> source;
+    private final Comparator<T> comparator;
+    private final BinaryOperator<T> reducer;
+    private final Consumer<T> setNext = elem -> this.next = elem;
+    // first element of the next group, already taken from the source
+    private T next;
+
+    ReducingSpliterator(Spliterator<T> source, Comparator<T> comparator, BinaryOperator<T> reducer) {
+        this.source = source;
+        this.comparator = comparator;
+        this.reducer = reducer;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        T current = next;
+        if (current == null) {
+            if (!source.tryAdvance(setNext)) {
+                return false;
+            }
+            current = next;
+        }
+        next = null;
+        while (source.tryAdvance(setNext)) {
+            if (comparator.compare(current, next) != 0) {
+                break;
+            }
+            current = reducer.apply(current, next);
+            next = null;
+        }
+        action.accept(current);
+        return true;
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        // the source can only be split before the first group was started
+        if (next != null) {
+            return null;
+        }
+        Spliterator<T> prefix = source.trySplit();
+        return prefix == null ? null : new ReducingSpliterator<>(prefix, comparator, reducer);
+    }
+
+    @Override
+    public long estimateSize() {
+        return source.estimateSize();
+    }
+
+    @Override
+    public int characteristics() {
+        return source.characteristics() & ~(Spliterator.SIZED | Spliterator.SUBSIZED);
+    }
+
+    @Override
+    public Comparator<? super T> getComparator() {
+        return source.getComparator();
+    }
+}
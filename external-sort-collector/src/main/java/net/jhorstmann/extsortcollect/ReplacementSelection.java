@@ -0,0 +1,189 @@
+package net.jhorstmann.extsortcollect;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.Consumer;
+
+/**
+ * Heap for run generation by replacement selection. Each element is tagged with the run it belongs to, elements that
+ * are less than the last element removed from the heap can not be part of the current run and are assigned to the
+ * next one. On random input runs are about twice as long as the capacity of the heap, on partially sorted input
+ * they can be much longer.
+ * <p>
+ * Elements are ordered by run, then by the comparator and then by their insertion order, so that equal elements
+ * keep their order within a run and, since a later element never gets an earlier run, also across runs.
+ */
+class ReplacementSelection<T> {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Comparator<T> comparator;
+    private final int maxItems;
+    private final long memoryBudget;
+    private final ExternalSortCollectors.SizeEstimator<T> sizeEstimator;
+    private Object[] elements;
+    private int[] runs;
+    private long[] sequences;
+    // estimated size of each element, only with a memory budget, so that the budget is released by the same amount
+    private long[] sizes;
+    private int size;
+    private long sequence;
+    private long estimatedSize;
+    private int run;
+    private T last;
+
+    ReplacementSelection(Comparator<T> comparator, int maxItems, long memoryBudget, ExternalSortCollectors.SizeEstimator<T> sizeEstimator) {
+        this.comparator = comparator;
+        this.maxItems = maxItems;
+        this.memoryBudget = memoryBudget;
+        this.sizeEstimator = sizeEstimator;
+        int capacity = Math.min(maxItems, INITIAL_CAPACITY);
+        this.elements = new Object[capacity];
+        this.runs = new int[capacity];
+        this.sequences = new long[capacity];
+        this.sizes = memoryBudget > 0 ? new long[capacity] : null;
+    }
+
+    boolean isFull() {
+        return size == maxItems || (memoryBudget > 0 && estimatedSize >= memoryBudget);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Run of the element that was last removed.
+     */
+    int getRun() {
+        return run;
+    }
+
+    void add(T elem) {
+        if (size == elements.length) {
+            int capacity = (int) Math.min(maxItems, elements.length + (long) (elements.length >> 1) + 1);
+            this.elements = Arrays.copyOf(elements, capacity);
+            this.runs = Arrays.copyOf(runs, capacity);
+            this.sequences = Arrays.copyOf(sequences, capacity);
+            if (sizes != null) {
+                this.sizes = Arrays.copyOf(sizes, capacity);
+            }
+        }
+        int elemRun = last != null && comparator.compare(elem, last) < 0 ? run + 1 : run;
+        long elemSize = 0;
+        if (memoryBudget > 0) {
+            elemSize = sizeEstimator.estimateSize(elem);
+            estimatedSize += elemSize;
+        }
+        siftUp(size++, elem, elemRun, sequence++, elemSize);
+    }
+
+    /**
+     * Removes the least element of the earliest run, {@link #getRun()} afterwards returns the run of that element.
+     */
+    @SuppressWarnings("unchecked")
+    T poll() {
+        T result = (T) elements[0];
+        this.run = runs[0];
+        this.last = result;
+        if (sizes != null) {
+            estimatedSize -= sizes[0];
+        }
+
+        int n = --size;
+        Object elem = elements[n];
+        int elemRun = runs[n];
+        long elemSequence = sequences[n];
+        long elemSize = sizes != null ? sizes[n] : 0;
+        elements[n] = null;
+        if (n > 0) {
+            siftDown(0, elem, elemRun, elemSequence, elemSize);
+        }
+        return result;
+    }
+
+    /**
+     * Passes all elements to {@code action} in no particular order and removes them.
+     */
+    @SuppressWarnings("unchecked")
+    void drain(Consumer<? super T> action) {
+        Object[] elements = this.elements;
+        int size = this.size;
+        this.size = 0;
+        this.estimatedSize = 0;
+        for (int i = 0; i < size; i++) {
+            T elem = (T) elements[i];
+            elements[i] = null;
+            action.accept(elem);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean less(Object e1, int r1, long s1, Object e2, int r2, long s2) {
+        if (r1 != r2) {
+            return r1 < r2;
+        }
+        int res = comparator.compare((T) e1, (T) e2);
+        return res != 0 ? res < 0 : s1 < s2;
+    }
+
+    private void siftUp(int k, Object elem, int elemRun, long elemSequence, long elemSize) {
+        Object[] elements = this.elements;
+        int[] runs = this.runs;
+        long[] sequences = this.sequences;
+        long[] sizes = this.sizes;
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            if (!less(elem, elemRun, elemSequence, elements[parent], runs[parent], sequences[parent])) {
+                break;
+            }
+            elements[k] = elements[parent];
+            runs[k] = runs[parent];
+            sequences[k] = sequences[parent];
+            if (sizes != null) {
+                sizes[k] = sizes[parent];
+            }
+            k = parent;
+        }
+        elements[k] = elem;
+        runs[k] = elemRun;
+        sequences[k] = elemSequence;
+        if (sizes != null) {
+            sizes[k] = elemSize;
+        }
+    }
+
+    private void siftDown(int k, Object elem, int elemRun, long elemSequence, long elemSize) {
+        Object[] elements = this.elements;
+        int[] runs = this.runs;
+        long[] sequences = this.sequences;
+        long[] sizes = this.sizes;
+        int half = size >>> 1;
+        while (k < half) {
+            int child = 2 * k + 1;
+            int right = child + 1;
+            if (right < size && less(elements[right], runs[right], sequences[right], elements[child], runs[child], sequences[child])) {
+                child = right;
+            }
+            if (!less(elements[child], runs[child], sequences[child], elem, elemRun, elemSequence)) {
+                break;
+            }
+            elements[k] = elements[child];
+            runs[k] = runs[child];
+            sequences[k] = sequences[child];
+            if (sizes != null) {
+                sizes[k] = sizes[child];
+            }
+            k = child;
+        }
+        elements[k] = elem;
+        runs[k] = elemRun;
+        sequences[k] = elemSequence;
+        if (sizes != null) {
+            sizes[k] = elemSize;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package net.jhorstmann.extsortcollect;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Buffers elements for the in-memory sort of one run before it is written as a chunk.
+ */
+interface RunBuffer<T> {
+    void add(T elem);
+
+    boolean isFull();
+
+    int size();
+
+    void sort(Comparator<T> comparator);
+
+    /**
+     * Writes the first {@code count} sorted elements as the records of one chunk.
+     */
+    void writeTo(ChunkWriter<T> writer, int count) throws IOException;
+
+    void forEach(Consumer<? super T> action);
+
+    Stream<T> stream();
+
+    void clear();
+
+    /**
+     * Releases memory that is not reclaimed by the garbage collector, the buffer must not be used afterwards.
+     */
+    default void release() {
+    }
+}
@@ -0,0 +1,57 @@
+package net.jhorstmann.extsortcollect;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Estimates the retained size of a record from its serialized size plus a fixed overhead for object headers and
+ * references. Only every {@code sampleInterval}-th record is serialized, the others are estimated by the average size
+ * of the sampled records. Each thread keeps its own scratch buffer and average so that one instance can be shared by
+ * all accumulators of a parallel stream.
+ */
+class SerializedSizeEstimator<T> implements ExternalSortCollectors.SizeEstimator<T> {
+    static final int OBJECT_OVERHEAD = 32;
+    static final int DEFAULT_SAMPLE_INTERVAL = 64;
+
+    private final ExternalSortCollectors.Serializer<T> serializer;
+    private final int sampleInterval;
+    private final ThreadLocal<Sample> sample;
+
+    SerializedSizeEstimator(ExternalSortCollectors.Serializer<T> serializer, int maxRecordSize, int sampleInterval) {
+        if (sampleInterval <= 0) {
+            throw new IllegalArgumentException("sample interval must be positive");
+        }
+        this.serializer = serializer;
+        this.sampleInterval = sampleInterval;
+        this.sample = ThreadLocal.withInitial(() -> new Sample(maxRecordSize));
+    }
+
+    private static class Sample {
+        final ByteBuffer buffer;
+        long count;
+        long sampledSize;
+        long sampledCount;
+        long averageSize;
+
+        Sample(int maxRecordSize) {
+            this.buffer = ByteBuffer.allocate(maxRecordSize);
+        }
+    }
+
+    @Override
+    public long estimateSize(T data) {
+        Sample sample = this.sample.get();
+        // the first record of each thread is always sampled
+        if (sample.count++ % sampleInterval == 0) {
+            ByteBuffer buffer = sample.buffer;
+            buffer.clear();
+            serializer.write(buffer, data);
+            if (sampleInterval == 1) {
+                return buffer.position() + OBJECT_OVERHEAD;
+            }
+            sample.sampledSize += buffer.position();
+            sample.sampledCount++;
+            sample.averageSize = sample.sampledSize / sample.sampledCount;
+        }
+        return sample.averageSize + OBJECT_OVERHEAD;
+    }
+}
@@ -0,0 +1,154 @@
+package net.jhorstmann.extsortcollect;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Keeps the least {@code limit} elements seen so far in a max-heap, an element that is not less than the greatest
+ * element in a full heap is discarded with a single comparison.
+ * <p>
+ * Elements are ordered by the comparator and then by their insertion order, so that of several equal elements the
+ * ones added first are kept and {@link #toSortedArray()} returns them in insertion order.
+ */
+class TopKHeap<T> {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Comparator<T> comparator;
+    private final int limit;
+    private final long memoryBudget;
+    private final ExternalSortCollectors.SizeEstimator<T> sizeEstimator;
+    private Object[] elements;
+    private long[] sequences;
+    // estimated size of each element, only with a memory budget, so that evicting an element does not estimate it again
+    private long[] sizes;
+    private int size;
+    private long sequence;
+    private long estimatedSize;
+
+    TopKHeap(Comparator<T> comparator, int limit, long memoryBudget, ExternalSortCollectors.SizeEstimator<T> sizeEstimator) {
+        this.comparator = comparator;
+        this.limit = limit;
+        this.memoryBudget = memoryBudget;
+        this.sizeEstimator = sizeEstimator;
+        int capacity = Math.min(limit, INITIAL_CAPACITY);
+        this.elements = new Object[capacity];
+        this.sequences = new long[capacity];
+        this.sizes = memoryBudget > 0 ? new long[capacity] : null;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns true if the estimated size of the elements exceeds the memory budget, the elements then have to be
+     * spilled.
+     */
+    boolean isOverBudget() {
+        return memoryBudget > 0 && estimatedSize >= memoryBudget;
+    }
+
+    void add(T elem) {
+        long elemSequence = sequence++;
+        if (size < limit) {
+            if (size == elements.length) {
+                int capacity = (int) Math.min(limit, elements.length + (long) (elements.length >> 1) + 1);
+                this.elements = Arrays.copyOf(elements, capacity);
+                this.sequences = Arrays.copyOf(sequences, capacity);
+                if (sizes != null) {
+                    this.sizes = Arrays.copyOf(sizes, capacity);
+                }
+            }
+            long elemSize = 0;
+            if (memoryBudget > 0) {
+                elemSize = sizeEstimator.estimateSize(elem);
+                estimatedSize += elemSize;
+            }
+            siftUp(size++, elem, elemSequence, elemSize);
+        } else if (size > 0 && greater(elements[0], sequences[0], elem, elemSequence)) {
+            long elemSize = 0;
+            if (memoryBudget > 0) {
+                elemSize = sizeEstimator.estimateSize(elem);
+                estimatedSize += elemSize - sizes[0];
+            }
+            siftDown(0, elem, elemSequence, elemSize);
+        }
+    }
+
+    /**
+     * Removes all elements and returns them in ascending order.
+     */
+    Object[] toSortedArray() {
+        Object[] sorted = new Object[size];
+        for (int i = sorted.length - 1; i >= 0; i--) {
+            sorted[i] = elements[0];
+            int n = --size;
+            Object elem = elements[n];
+            long elemSequence = sequences[n];
+            long elemSize = sizes != null ? sizes[n] : 0;
+            elements[n] = null;
+            if (n > 0) {
+                siftDown(0, elem, elemSequence, elemSize);
+            }
+        }
+        this.estimatedSize = 0;
+        return sorted;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean greater(Object e1, long s1, Object e2, long s2) {
+        int res = comparator.compare((T) e1, (T) e2);
+        return res != 0 ? res > 0 : s1 > s2;
+    }
+
+    private void siftUp(int k, Object elem, long elemSequence, long elemSize) {
+        Object[] elements = this.elements;
+        long[] sequences = this.sequences;
+        long[] sizes = this.sizes;
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            if (!greater(elem, elemSequence, elements[parent], sequences[parent])) {
+                break;
+            }
+            elements[k] = elements[parent];
+            sequences[k] = sequences[parent];
+            if (sizes != null) {
+                sizes[k] = sizes[parent];
+            }
+            k = parent;
+        }
+        elements[k] = elem;
+        sequences[k] = elemSequence;
+        if (sizes != null) {
+            sizes[k] = elemSize;
+        }
+    }
+
+    private void siftDown(int k, Object elem, long elemSequence, long elemSize) {
+        Object[] elements = this.elements;
+        long[] sequences = this.sequences;
+        long[] sizes = this.sizes;
+        int half = size >>> 1;
+        while (k < half) {
+            int child = 2 * k + 1;
+            int right = child + 1;
+            if (right < size && greater(elements[right], sequences[right], elements[child], sequences[child])) {
+                child = right;
+            }
+            if (!greater(elements[child], sequences[child], elem, elemSequence)) {
+                break;
+            }
+            elements[k] = elements[child];
+            sequences[k] = sequences[child];
+            if (sizes != null) {
+                sizes[k] = sizes[child];
+            }
+            k = child;
+        }
+        elements[k] = elem;
+        sequences[k] = elemSequence;
+        if (sizes != null) {
+            sizes[k] = elemSize;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package net.jhorstmann.extsortcollect;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BlockCodecTest {
+
+    @ParameterizedTest
+    @MethodSource("codecs")
+    void shouldRoundTripBlocks(ExternalSortCollectors.BlockCodec codec) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        StringBuilder digits = new StringBuilder();
+        while (digits.length() < 100_000) {
+            digits.append(random.nextInt(1, 100_000) * 31);
+        }
+        byte[] repetitive = new byte[70_000];
+        for (int i = 0; i < repetitive.length; i++) {
+            repetitive[i] = (byte) (i % 7);
+        }
+        byte[] noise = new byte[10_000];
+        random.nextBytes(noise);
+
+        for (byte[] block : Arrays.asList(new byte[0], new byte[]{42}, "abcabcabcabc".getBytes(StandardCharsets.US_ASCII),
+                digits.toString().getBytes(StandardCharsets.US_ASCII), repetitive, noise)) {
+            byte[] compressed = new byte[3 + codec.maxCompressedLength(block.length)];
+            int length = codec.compress(block, 0, block.length, compressed, 3);
+            assertThat(length).isLessThanOrEqualTo(codec.maxCompressedLength(block.length));
+
+            byte[] decompressed = new byte[block.length + 5];
+            codec.decompress(compressed, 3, length, decompressed, 5, block.length);
+            assertThat(Arrays.copyOfRange(decompressed, 5, decompressed.length)).isEqualTo(block);
+        }
+
+        byte[] repetitiveCompressed = new byte[codec.maxCompressedLength(repetitive.length)];
+        assertThat(codec.compress(repetitive, 0, repetitive.length, repetitiveCompressed, 0)).isLessThan(repetitive.length / 10);
+    }
+
+    private static Stream<ExternalSortCollectors.BlockCodec> codecs() {
+        return Stream.of(ExternalSortCollectors.BlockCodec.lz(), ExternalSortCollectors.BlockCodec.deflate(1), ExternalSortCollectors.BlockCodec.deflate(9));
+    }
+}
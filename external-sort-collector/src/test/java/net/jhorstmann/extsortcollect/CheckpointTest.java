@@ -0,0 +1,186 @@
+package net.jhorstmann.extsortcollect;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ArgumentsSource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class CheckpointTest {
+
+    @ParameterizedTest
+    @ArgumentsSource(TestData.RandomNumbers.class)
+    void shouldResumeRunGenerationAfterFailure(List<Data> data) throws IOException {
+        Path directory = Files.createTempDirectory("extsort");
+        Path manifest = directory.resolve("sort.manifest");
+        try {
+            ExternalSortCollectors.Configuration<Data> configuration = configuration(directory).build();
+            List<Data> sorted = data.stream().sorted(configuration.getComparator()).collect(toList());
+
+            int failAt = data.size() / 2;
+            Stream<Data> failing = IntStream.range(0, data.size()).mapToObj(i -> {
+                if (i == failAt) {
+                    throw new IllegalStateException("failed at " + i);
+                }
+                return data.get(i);
+            });
+            // an empty input has no element to fail at
+            if (!data.isEmpty()) {
+                assertThatThrownBy(() -> ExternalSortCollectors.externalSortWithCheckpoint(configuration, failing, manifest))
+                        .isInstanceOf(IllegalStateException.class);
+            }
+            assertThat(Files.exists(manifest)).isEqualTo(failAt >= configuration.getInternalSortMaxItems());
+            // spill files are kept in the spill storage, not next to the manifest
+            assertThat(spillFiles(directory).isEmpty()).isEqualTo(!Files.exists(manifest));
+
+            try (Stream<Data> stream = ExternalSortCollectors.externalSortWithCheckpoint(configuration, data.stream(), manifest)) {
+                assertThat(stream.collect(toList())).containsExactlyElementsOf(sorted);
+            }
+            assertThat(Files.exists(manifest)).isFalse();
+            assertThat(spillFiles(directory)).isEmpty();
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @ParameterizedTest
+    @ArgumentsSource(TestData.RandomNumbers.class)
+    void shouldResumeMergeWithoutReadingInput(List<Data> data) throws IOException {
+        Path directory = Files.createTempDirectory("extsort");
+        Path manifest = directory.resolve("sort.manifest");
+        try {
+            ExternalSortCollectors.Configuration<Data> configuration = configuration(directory).build();
+            List<Data> sorted = data.stream().sorted(configuration.getComparator()).collect(toList());
+
+            // the first attempt is abandoned during the merge
+            Stream<Data> abandoned = ExternalSortCollectors.externalSortWithCheckpoint(configuration, data.stream(), manifest);
+            Iterator<Data> iterator = abandoned.iterator();
+            if (iterator.hasNext()) {
+                assertThat(iterator.next()).isEqualTo(sorted.get(0));
+            }
+
+            if (data.size() > configuration.getInternalSortMaxItems()) {
+                Stream<Data> unreadable = Stream.generate(() -> {
+                    throw new AssertionError("input of a complete checkpoint should not be read");
+                });
+                try (Stream<Data> stream = ExternalSortCollectors.externalSortWithCheckpoint(configuration, unreadable, manifest)) {
+                    assertThat(stream.collect(toList())).containsExactlyElementsOf(sorted);
+                }
+            }
+            abandoned.close();
+            assertThat(Files.exists(manifest)).isFalse();
+            assertThat(spillFiles(directory)).isEmpty();
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @ParameterizedTest
+    @ArgumentsSource(TestData.RandomNumbers.class)
+    void shouldNotResumeWithDifferentConfiguration(List<Data> data) throws IOException {
+        Path directory = Files.createTempDirectory("extsort");
+        Path manifest = directory.resolve("sort.manifest");
+        try {
+            ExternalSortCollectors.Configuration<Data> configuration = configuration(directory).build();
+            Stream<Data> abandoned = ExternalSortCollectors.externalSortWithCheckpoint(configuration, data.stream(), manifest);
+            if (data.size() > configuration.getInternalSortMaxItems()) {
+                ExternalSortCollectors.Configuration<Data> other = configuration(directory).withIndexInterval(64).build();
+                assertThatThrownBy(() -> ExternalSortCollectors.externalSortWithCheckpoint(other, data.stream(), manifest))
+                        .isInstanceOf(IllegalStateException.class)
+                        .hasMessageContaining("indexInterval=256");
+
+                ExternalSortCollectors.Configuration<Data> distinct = configuration(directory).withDistinct().build();
+                assertThatThrownBy(() -> ExternalSortCollectors.externalSortWithCheckpoint(distinct, data.stream(), manifest))
+                        .isInstanceOf(IllegalStateException.class)
+                        .hasMessageContaining("distinct=false");
+
+                ExternalSortCollectors.Configuration<Data> byPayload = configuration(directory)
+                        .withComparator(Comparator.comparing(Data::getPayload))
+                        .withCheckpointId("by-payload")
+                        .build();
+                assertThatThrownBy(() -> ExternalSortCollectors.externalSortWithCheckpoint(byPayload, data.stream(), manifest))
+                        .isInstanceOf(IllegalStateException.class)
+                        .hasMessageContaining("checkpointId=by-id");
+            }
+            abandoned.close();
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @ParameterizedTest
+    @ArgumentsSource(TestData.RandomNumbers.class)
+    void shouldRequireCheckpointIdForLambdaComparator(List<Data> data) throws IOException {
+        Path directory = Files.createTempDirectory("extsort");
+        Path manifest = directory.resolve("sort.manifest");
+        try {
+            ExternalSortCollectors.Configuration<Data> configuration = configuration(directory)
+                    .withCheckpointId(null)
+                    .build();
+            assertThatThrownBy(() -> ExternalSortCollectors.externalSortWithCheckpoint(configuration, data.stream(), manifest))
+                    .isInstanceOf(IllegalArgumentException.class)
+                    .hasMessageContaining("checkpoint id");
+            assertThat(Files.exists(manifest)).isFalse();
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    private static List<Path> spillFiles(Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (Path path : directoryContents(directory)) {
+            if (Files.isDirectory(path)) {
+                files.addAll(directoryContents(path));
+            }
+        }
+        return files;
+    }
+
+    private static List<Path> directoryContents(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.collect(toList());
+        }
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        for (Path path : directoryContents(directory)) {
+            if (Files.isDirectory(path)) {
+                deleteDirectory(path);
+            } else {
+                Files.delete(path);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    /**
+     * Stripes the spill files over two directories below {@code directory}.
+     */
+    private static ExternalSortCollectors.ConfigurationBuilder<Data> configuration(Path directory) throws IOException {
+        List<Path> spillDirectories = Arrays.asList(directory.resolve("spill1"), directory.resolve("spill2"));
+        for (Path spillDirectory : spillDirectories) {
+            Files.createDirectories(spillDirectory);
+        }
+        return ExternalSortCollectors.configuration(new DataSerializer())
+                .withComparator(Comparator.comparing(Data::getId))
+                .withCheckpointId("by-id")
+                .withInternalSortMaxItems(100)
+                .withMaxRecordSize(50)
+                .withWriteBufferSize(200)
+                .withMaxMergeFanIn(4)
+                .withIndexInterval(256)
+                .withSpillStorage(ExternalSortCollectors.SpillStorage.striped(spillDirectories));
+    }
+}
@@ -0,0 +1,22 @@
+package net.jhorstmann.extsortcollect;
+
+class DataKeySerializer extends DataSerializer implements ExternalSortCollectors.KeySerializer<Data> {
+    private final int shift;
+
+    /**
+     * Uses the id shifted right by {@code shift} bits as key prefix, which is only complete if nothing is shifted out.
+     */
+    DataKeySerializer(int shift) {
+        this.shift = shift;
+    }
+
+    @Override
+    public long keyPrefix(Data data) {
+        return data.getId() >>> shift;
+    }
+
+    @Override
+    public boolean isKeyPrefixComplete() {
+        return shift == 0;
+    }
+}
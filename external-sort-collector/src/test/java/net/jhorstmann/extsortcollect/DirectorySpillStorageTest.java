@@ -0,0 +1,49 @@
+package net.jhorstmann.extsortcollect;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DirectorySpillStorageTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = {"true", "false"})
+    void shouldPutEachStripeInAnotherDirectory(boolean byFreeSpace) throws IOException {
+        List<Path> directories = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            directories.add(Files.createTempDirectory("extsort_test_"));
+        }
+        try {
+            DirectorySpillStorage storage = new DirectorySpillStorage(directories, byFreeSpace);
+            for (int accumulator = 0; accumulator < 4; accumulator++) {
+                Path[] stripes = storage.stripeDirectories();
+                assertThat(stripes).containsExactlyInAnyOrder(directories.toArray(new Path[0]));
+                if (!byFreeSpace) {
+                    // concurrent accumulators start with different directories
+                    assertThat(stripes[0]).isEqualTo(directories.get(accumulator % directories.size()));
+                }
+            }
+
+            FileChannel[] files = storage.createStripes();
+            try {
+                assertThat(files).hasSize(directories.size());
+            } finally {
+                for (FileChannel file : files) {
+                    file.close();
+                }
+            }
+        } finally {
+            for (Path directory : directories) {
+                Files.delete(directory);
+            }
+        }
+    }
+}
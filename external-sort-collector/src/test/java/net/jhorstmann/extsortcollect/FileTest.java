@@ -0,0 +1,137 @@
+package net.jhorstmann.extsortcollect;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ArgumentsSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class FileTest {
+
+    @ParameterizedTest
+    @ArgumentsSource(TestData.RandomNumbers.class)
+    void shouldReadBlockFile(List<Data> data) throws IOException {
+        ExternalSortCollectors.Configuration<Data> configuration = configuration();
+
+        Path path = Files.createTempFile("extsort", ".dat");
+        try {
+            assertThat(ExternalSortCollectors.write(configuration, data.stream(), path)).isEqualTo(data.size());
+
+            try (Stream<Data> stream = ExternalSortCollectors.stream(configuration, path)) {
+                assertThat(stream.collect(toList())).containsExactlyElementsOf(data);
+            }
+            try (Stream<Data> stream = ExternalSortCollectors.stream(configuration, path)) {
+                assertThat(stream.parallel().collect(toList())).containsExactlyElementsOf(data);
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @ParameterizedTest
+    @ArgumentsSource(TestData.RandomNumbers.class)
+    void shouldSortBlockFile(List<Data> data) throws IOException {
+        ExternalSortCollectors.Configuration<Data> configuration = configuration();
+
+        Path path = Files.createTempFile("extsort", ".dat");
+        try {
+            ExternalSortCollectors.write(configuration, data.stream(), path);
+
+            try (Stream<Data> stream = ExternalSortCollectors.sorted(configuration, path)) {
+                assertThat(stream.collect(toList())).containsExactlyElementsOf(data.stream().sorted(configuration.getComparator()).collect(toList()));
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @ParameterizedTest
+    @ArgumentsSource(TestData.RandomNumbers.class)
+    void shouldOpenSortedFile(List<Data> data) throws IOException {
+        ExternalSortCollectors.Configuration<Data> configuration = configuration();
+        List<Data> sorted = data.stream().sorted(configuration.getComparator()).collect(toList());
+
+        Path path = Files.createTempFile("extsort", ".dat");
+        try {
+            assertThat(ExternalSortCollectors.sortTo(configuration, data.stream(), path)).isEqualTo(data.size());
+
+            try (Stream<Data> stream = ExternalSortCollectors.open(configuration, path)) {
+                Spliterator<Data> spliterator = stream.spliterator();
+                assertThat(spliterator.hasCharacteristics(Spliterator.SORTED | Spliterator.SIZED)).isTrue();
+                assertThat(spliterator.getComparator()).isSameAs(configuration.getComparator());
+                assertThat(spliterator.getExactSizeIfKnown()).isEqualTo(data.size());
+            }
+            try (Stream<Data> stream = ExternalSortCollectors.open(configuration, path)) {
+                assertThat(stream.collect(toList())).containsExactlyElementsOf(sorted);
+            }
+            try (Stream<Data> stream = ExternalSortCollectors.open(configuration, path)) {
+                assertThat(stream.parallel().collect(toList())).containsExactlyElementsOf(sorted);
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @ParameterizedTest
+    @ArgumentsSource(TestData.RandomNumbers.class)
+    void shouldNotOpenUnsortedFile(List<Data> data) throws IOException {
+        ExternalSortCollectors.Configuration<Data> configuration = configuration();
+
+        Path path = Files.createTempFile("extsort", ".dat");
+        try {
+            ExternalSortCollectors.write(configuration, data.stream(), path);
+
+            assertThatThrownBy(() -> ExternalSortCollectors.open(configuration, path))
+                    .isInstanceOf(IllegalStateException.class);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @ParameterizedTest
+    @ArgumentsSource(TestData.RandomNumbers.class)
+    void shouldReadFileWithoutIndex(List<Data> data) throws IOException {
+        ExternalSortCollectors.Configuration<Data> configuration = configuration();
+
+        Path path = Files.createTempFile("extsort", ".dat");
+        try {
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.allocate(configuration.getMaxRecordSize());
+                DataSerializer serializer = new DataSerializer();
+                for (Data d : data) {
+                    buffer.clear();
+                    serializer.write(buffer, d);
+                    buffer.flip();
+                    file.write(buffer);
+                }
+            }
+
+            try (Stream<Data> stream = ExternalSortCollectors.stream(configuration, path)) {
+                assertThat(stream.collect(toList())).containsExactlyElementsOf(data);
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    private static ExternalSortCollectors.Configuration<Data> configuration() {
+        return ExternalSortCollectors.configuration(new DataSerializer())
+                .withComparator(Comparator.comparing(Data::getId))
+                .withInternalSortMaxItems(100)
+                .withMaxRecordSize(50)
+                .withWriteBufferSize(200)
+                .build();
+    }
+}
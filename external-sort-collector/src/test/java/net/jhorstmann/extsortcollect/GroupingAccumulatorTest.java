@@ -0,0 +1,119 @@
+package net.jhorstmann.extsortcollect;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ArgumentsSource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collector;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.mapping;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class GroupingAccumulatorTest {
+
+    @ParameterizedTest
+    @ArgumentsSource(TestData.RandomNumbers.class)
+    @ArgumentsSource(TestData.DuplicateNumbers.class)
+    void shouldGroupInMemory(List<Data> data) {
+        ExternalSortCollectors.Configuration<Data> configuration = ExternalSortCollectors.configuration(new DataSerializer())
+                .withInternalSortMaxItems(20_000)
+                .build();
+
+        groupAndCompare(data, configuration, false);
+    }
+
+    @ParameterizedTest
+    @ArgumentsSource(TestData.RandomNumbers.class)
+    @ArgumentsSource(TestData.DuplicateNumbers.class)
+    void shouldGroupWithRecursivelyRepartitionedSpills(List<Data> data) {
+        ExternalSortCollectors.Configuration<Data> configuration = ExternalSortCollectors.configuration(new DataSerializer())
+                .withInternalSortMaxItems(10)
+                .withMaxRecordSize(50)
+                .withWriteBufferSize(100)
+                .build();
+
+        groupAndCompare(data, configuration, false);
+    }
+
+    @ParameterizedTest
+    @ArgumentsSource(TestData.RandomNumbers.class)
+    @ArgumentsSource(TestData.DuplicateNumbers.class)
+    void shouldGroupParallelStreamWithStripedInMemorySpillStorage(List<Data> data) {
+        ExternalSortCollectors.Configuration<Data> configuration = ExternalSortCollectors.configuration(new DataSerializer())
+                .withInternalSortMaxItems(50)
+                .withSpillStorage(ExternalSortCollectors.SpillStorage.inMemory(3))
+                .build();
+
+        groupAndCompare(data, configuration, true);
+    }
+
+    @ParameterizedTest
+    @ArgumentsSource(TestData.RandomNumbers.class)
+    @ArgumentsSource(TestData.DuplicateNumbers.class)
+    void shouldGroupWithMemoryBudget(List<Data> data) {
+        ExternalSortCollectors.Configuration<Data> configuration = ExternalSortCollectors.configuration(new DataSerializer())
+                .withMemoryBudget(2000)
+                .withSizeEstimator(d -> 100)
+                .build();
+
+        groupAndCompare(data, configuration, false);
+    }
+
+    @ParameterizedTest
+    @ArgumentsSource(TestData.RandomNumbers.class)
+    void shouldRepartitionWhenPartitionExceedsMemoryBudget(List<Data> data) {
+        ExternalSortCollectors.Configuration<Data> configuration = ExternalSortCollectors.configuration(new DataSerializer())
+                .withMemoryBudget(2000)
+                .withSizeEstimator(d -> 100)
+                .build();
+
+        // the groups of one partition are created before the first of them is finished
+        AtomicInteger open = new AtomicInteger();
+        AtomicInteger maxOpen = new AtomicInteger();
+        Collector<Data, List<Data>, Integer> counting = Collector.of(() -> {
+            maxOpen.accumulateAndGet(open.incrementAndGet(), Math::max);
+            return new ArrayList<>();
+        }, List::add, (a, b) -> {
+            a.addAll(b);
+            return a;
+        }, group -> {
+            open.decrementAndGet();
+            return group.size();
+        });
+
+        try (Stream<Map.Entry<Integer, Integer>> groups = data.stream().collect(ExternalSortCollectors.externalGroupingBy(configuration, Data::getId, counting))) {
+            assertThat(groups.mapToInt(Map.Entry::getValue).sum()).isEqualTo(data.size());
+        }
+        // random ids are almost unique, so each partition that fits into the budget has at most 20 groups
+        assertThat(maxOpen.get()).isLessThanOrEqualTo(20);
+    }
+
+    private static void groupAndCompare(List<Data> data, ExternalSortCollectors.Configuration<Data> configuration, boolean parallelStream) {
+        Stream<Data> stream = data.stream();
+        if (parallelStream) {
+            stream = stream.parallel();
+        }
+        Map<Integer, List<String>> externallyGrouped;
+        try (Stream<Map.Entry<Integer, List<String>>> groups = stream.collect(ExternalSortCollectors.externalGroupingBy(configuration, Data::getId, mapping(Data::getPayload, toList())))) {
+            externallyGrouped = groups.collect(toMap(Map.Entry::getKey, Map.Entry::getValue));
+        }
+
+        Map<Integer, List<String>> internallyGrouped = data.stream()
+                .collect(groupingBy(Data::getId, mapping(Data::getPayload, toList())));
+
+        if (parallelStream) {
+            // elements of a group are only in encounter order for sequential streams
+            externallyGrouped.values().forEach(Collections::sort);
+            internallyGrouped.values().forEach(Collections::sort);
+        }
+        assertThat(externallyGrouped).isEqualTo(internallyGrouped);
+    }
+}
@@ -0,0 +1,107 @@
+package net.jhorstmann.extsortcollect;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ArgumentsSource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.function.BiFunction;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MergeJoinTest {
+
+    private static final Comparator<Data> COMPARATOR = Comparator.comparing(Data::getId);
+    private static final BiFunction<Data, Data, String> JOINER = (a, b) -> a.getPayload() + ":" + (b == null ? null : b.getPayload());
+
+    @ParameterizedTest
+    @ArgumentsSource(TestData.RandomNumbers.class)
+    @ArgumentsSource(TestData.DuplicateNumbers.class)
+    void shouldMergeJoinExternallySortedStreams(List<Data> data) {
+        ExternalSortCollectors.Configuration<Data> configuration = ExternalSortCollectors.configuration(new DataSerializer())
+                .withComparator(COMPARATOR)
+                .withInternalSortMaxItems(20)
+                .withMaxMergeFanIn(4)
+                .build();
+
+        joinAndCompare(data, rightSide(data, true), configuration, false);
+        joinAndCompare(data, rightSide(data, false), configuration, false);
+    }
+
+    @ParameterizedTest
+    @ArgumentsSource(TestData.RandomNumbers.class)
+    @ArgumentsSource(TestData.DuplicateNumbers.class)
+    void shouldLeftMergeJoinExternallySortedStreams(List<Data> data) {
+        ExternalSortCollectors.Configuration<Data> configuration = ExternalSortCollectors.configuration(new DataKeySerializer(2))
+                .withComparator(COMPARATOR)
+                .withInternalSortMaxItems(20)
+                .build();
+
+        joinAndCompare(data, rightSide(data, true), configuration, true);
+        joinAndCompare(data, rightSide(data, false), configuration, true);
+    }
+
+    @Test
+    void shouldJoinEqualLeftKeysAfterRightSideEnded() {
+        ExternalSortCollectors.Configuration<Data> configuration = ExternalSortCollectors.configuration(new DataSerializer())
+                .withComparator(COMPARATOR)
+                .build();
+
+        List<Data> left = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            left.add(new Data(3, String.valueOf(i)));
+            left.add(new Data(5, String.valueOf(i)));
+        }
+        left.add(new Data(7, "1"));
+        List<Data> right = new ArrayList<>();
+        right.add(new Data(5, "9"));
+
+        joinAndCompare(left, right, configuration, false);
+        joinAndCompare(left, right, configuration, true);
+    }
+
+    /**
+     * Ids of every third of the first elements match twice. If {@code trailing} is false the right side ends on the
+     * largest matched group, otherwise some right elements after all left elements match nothing.
+     */
+    private static List<Data> rightSide(List<Data> data, boolean trailing) {
+        List<Data> right = new ArrayList<>();
+        for (int i = 0; i < Math.min(data.size(), 100); i += 3) {
+            right.add(new Data(data.get(i).getId(), "1" + i));
+            right.add(new Data(data.get(i).getId(), "2" + i));
+        }
+        if (trailing) {
+            right.add(new Data(100_000, "0"));
+            right.add(new Data(100_001, "0"));
+        }
+        return right;
+    }
+
+    private static void joinAndCompare(List<Data> left, List<Data> right, ExternalSortCollectors.Configuration<Data> configuration, boolean outer) {
+        TreeMap<Integer, List<Data>> rightById = right.stream().collect(groupingBy(Data::getId, TreeMap::new, toList()));
+        List<String> expected = new ArrayList<>();
+        left.stream().sorted(COMPARATOR).forEach(a -> {
+            List<Data> matches = rightById.getOrDefault(a.getId(), Collections.emptyList());
+            if (matches.isEmpty() && outer) {
+                expected.add(JOINER.apply(a, null));
+            }
+            for (Data b : matches) {
+                expected.add(JOINER.apply(a, b));
+            }
+        });
+
+        try (Stream<String> joined = outer
+                ? ExternalSortCollectors.leftMergeJoin(configuration, left.stream(), configuration, right.stream(), COMPARATOR::compare, JOINER)
+                : ExternalSortCollectors.mergeJoin(configuration, left.stream(), configuration, right.stream(), COMPARATOR::compare, JOINER)) {
+
+            assertThat(joined.collect(toList())).containsExactlyElementsOf(expected);
+        }
+    }
+}
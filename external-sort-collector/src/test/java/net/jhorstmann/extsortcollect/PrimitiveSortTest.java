@@ -0,0 +1,60 @@
+package net.jhorstmann.extsortcollect;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PrimitiveSortTest {
+
+    @ParameterizedTest
+    @MethodSource("sizes")
+    void shouldSortInts(int size) {
+        int[] data = ThreadLocalRandom.current().ints(size).toArray();
+
+        try (IntStream sorted = ExternalSortCollectors.externalSortInts(IntStream.of(data), 100)) {
+            assertThat(sorted.toArray()).containsExactly(IntStream.of(data).sorted().toArray());
+        }
+    }
+
+    @ParameterizedTest
+    @MethodSource("sizes")
+    void shouldSortLongsFromParallelStream(int size) {
+        long[] data = ThreadLocalRandom.current().longs(size).toArray();
+
+        try (LongStream sorted = ExternalSortCollectors.externalSortLongs(LongStream.of(data).parallel(), 100)) {
+            assertThat(sorted.toArray()).containsExactly(LongStream.of(data).sorted().toArray());
+        }
+    }
+
+    @ParameterizedTest
+    @MethodSource("sizes")
+    void shouldSortLongsFromParallelStreamWithStripedInMemorySpillStorage(int size) {
+        long[] data = ThreadLocalRandom.current().longs(size).toArray();
+
+        try (LongStream sorted = ExternalSortCollectors.externalSortLongs(LongStream.of(data).parallel(), 100, ExternalSortCollectors.SpillStorage.inMemory(3))) {
+            assertThat(sorted.toArray()).containsExactly(LongStream.of(data).sorted().toArray());
+        }
+    }
+
+    @ParameterizedTest
+    @MethodSource("sizes")
+    void shouldSortDoublesLikeDoubleCompare(int size) {
+        double[] special = {Double.NaN, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, -0.0, 0.0,
+                Double.MIN_VALUE, -Double.MIN_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE};
+        double[] data = DoubleStream.concat(DoubleStream.of(special), ThreadLocalRandom.current().doubles(size, -1000, 1000)).toArray();
+
+        try (DoubleStream sorted = ExternalSortCollectors.externalSortDoubles(DoubleStream.of(data), 100)) {
+            assertThat(sorted.toArray()).containsExactly(DoubleStream.of(data).sorted().toArray());
+        }
+    }
+
+    private static IntStream sizes() {
+        return IntStream.of(0, 1, 2, 100, 101, 10_000);
+    }
+}
@@ -0,0 +1,62 @@
+package net.jhorstmann.extsortcollect;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RadixSortTest {
+
+    @ParameterizedTest
+    @MethodSource("sizes")
+    void shouldSortObjectsStableByKey(int size) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long[] keys = new long[size];
+        Object[] data = new Object[size];
+        for (int i = 0; i < size; i++) {
+            // few distinct keys with negative values to check unsigned order and stability
+            keys[i] = random.nextLong(-5, 5) << 40 | random.nextInt(3);
+            data[i] = new long[]{keys[i], i};
+        }
+        Object[] expected = data.clone();
+        Arrays.sort(expected, Comparator.comparing((Object o) -> ((long[]) o)[0], Long::compareUnsigned));
+
+        RadixSort.sort(keys, data, size, false);
+        assertThat(data).isEqualTo(expected);
+
+        Object[] parallel = expected.clone();
+        Collections.shuffle(Arrays.asList(parallel), random);
+        long[] parallelKeys = Arrays.stream(parallel).mapToLong(o -> ((long[]) o)[0]).toArray();
+        Object[] parallelExpected = parallel.clone();
+        Arrays.sort(parallelExpected, Comparator.comparing((Object o) -> ((long[]) o)[0], Long::compareUnsigned));
+
+        RadixSort.sort(parallelKeys, parallel, size, 4);
+        assertThat(parallel).isEqualTo(parallelExpected);
+    }
+
+    @ParameterizedTest
+    @MethodSource("sizes")
+    void shouldSortSignedValues(int size) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long[] longs = random.longs(size).toArray();
+        long[] ints = random.ints(size).asLongStream().toArray();
+
+        long[] sortedLongs = longs.clone();
+        RadixSort.sortSigned(sortedLongs, size, Long.BYTES);
+        assertThat(sortedLongs).isEqualTo(Arrays.stream(longs).sorted().toArray());
+
+        long[] sortedInts = ints.clone();
+        RadixSort.sortSigned(sortedInts, size, Integer.BYTES);
+        assertThat(sortedInts).isEqualTo(Arrays.stream(ints).sorted().toArray());
+    }
+
+    private static IntStream sizes() {
+        return IntStream.of(0, 1, 2, 255, 256, 10_000, 100_000);
+    }
+}
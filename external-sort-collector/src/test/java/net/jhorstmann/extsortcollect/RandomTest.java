@@ -1,21 +1,36 @@
 package net.jhorstmann.extsortcollect;
 
 import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.ArgumentsSource;
 import org.junit.jupiter.params.provider.MethodSource;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ThreadLocalRandom;
-import java.util.stream.IntStream;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
 import java.util.stream.Stream;
 
+import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.reducing;
 import static java.util.stream.Collectors.toList;
 import static org.assertj.core.api.Assertions.assertThat;
 
 class RandomTest {
 
     @ParameterizedTest
-    @MethodSource("randomNumbers")
+    @ArgumentsSource(TestData.RandomNumbers.class)
     void shouldSortSmallArraysInMemory(List<Data> data) {
 
         Comparator<Data> comparator = Comparator.comparing(Data::getId);
@@ -30,7 +45,7 @@ class RandomTest {
     }
 
     @ParameterizedTest
-    @MethodSource("randomNumbers")
+    @ArgumentsSource(TestData.RandomNumbers.class)
     void shouldSortMoreThanMaxItemsExternally(List<Data> data) {
 
         Comparator<Data> comparator = Comparator.comparing(Data::getId);
@@ -44,7 +59,7 @@ class RandomTest {
     }
 
     @ParameterizedTest
-    @MethodSource("randomNumbers")
+    @ArgumentsSource(TestData.RandomNumbers.class)
     void shouldSortWithSmallWriteBuffer(List<Data> data) {
 
         Comparator<Data> comparator = Comparator.comparing(Data::getId);
@@ -60,7 +75,7 @@ class RandomTest {
     }
 
     @ParameterizedTest
-    @MethodSource("randomNumbers")
+    @ArgumentsSource(TestData.RandomNumbers.class)
     void shouldSortParallelStream(List<Data> data) {
 
         Comparator<Data> comparator = Comparator.comparing(Data::getId);
@@ -75,6 +90,407 @@ class RandomTest {
         sortAndCompare(data, configuration, true);
     }
 
+    @ParameterizedTest
+    @MethodSource("configurations")
+    void shouldSort(Variant variant, List<Data> data) {
+        sortAndCompare(data, variant.configuration(), variant.parallel);
+    }
+
+    @ParameterizedTest
+    @MethodSource("configurations")
+    void shouldReturnTopK(Variant variant, List<Data> data) {
+        // below and above the number of items of a run
+        topKAndCompare(data, variant.configuration(), 7, variant.parallel);
+        topKAndCompare(data, variant.configuration(), 150, variant.parallel);
+    }
+
+    @ParameterizedTest
+    @MethodSource("configurations")
+    void shouldSeekToRankAndStreamKeyRanges(Variant variant, List<Data> data) {
+        ExternalSortCollectors.Configuration<Data> configuration = variant.configuration();
+        List<Data> expected = data.stream().sorted(configuration.getComparator()).collect(toList());
+
+        try (ExternalSortCollectors.SortedResult<Data> result = collect(data, variant.parallel, ExternalSortCollectors.externalSortResult(configuration))) {
+            resultAndCompare(result, expected, data, configuration.getComparator(), variant.parallel);
+        }
+    }
+
+    @ParameterizedTest
+    @MethodSource("distinctConfigurations")
+    void shouldDropDuplicates(Variant variant, List<Data> data) {
+        ExternalSortCollectors.Configuration<Data> configuration = variant.builder.get().withDistinct().build();
+        List<Data> expected = distinct(data, configuration.getComparator());
+
+        try (Stream<Data> sortedStream = collect(data, variant.parallel, ExternalSortCollectors.externalSort(configuration))) {
+            compare(sortedStream.toArray(Data[]::new), expected, data, variant.parallel);
+        }
+        try (Stream<Data> sortedStream = collect(data, variant.parallel, ExternalSortCollectors.topK(configuration, 5))) {
+            compare(sortedStream.toArray(Data[]::new), expected.subList(0, Math.min(5, expected.size())), data, variant.parallel);
+        }
+        try (ExternalSortCollectors.SortedResult<Data> result = collect(data, variant.parallel, ExternalSortCollectors.externalSortResult(configuration))) {
+            resultAndCompare(result, expected, data, configuration.getComparator(), variant.parallel);
+        }
+    }
+
+    @ParameterizedTest
+    @MethodSource("distinctConfigurations")
+    void shouldCombineEqualElements(Variant variant, List<Data> data) {
+        reduceAndCompare(data, variant.configuration(), variant.parallel);
+    }
+
+    @ParameterizedTest
+    @ArgumentsSource(TestData.RandomNumbers.class)
+    @ArgumentsSource(TestData.DuplicateNumbers.class)
+    void shouldSplitSortedStreamByKeyRange(List<Data> data) {
+
+        Comparator<Data> comparator = Comparator.comparing(Data::getId);
+
+        ExternalSortCollectors.Configuration<Data> configuration = ExternalSortCollectors.configuration(new DataSerializer())
+                .withComparator(comparator)
+                .withInternalSortMaxItems(100)
+                .withIndexInterval(8)
+                .build();
+
+        try (Stream<Data> sortedStream = data.stream().collect(ExternalSortCollectors.externalSort(configuration))) {
+            Spliterator<Data> upper = sortedStream.spliterator();
+            Spliterator<Data> lower = upper.trySplit();
+
+            List<Data> result = new ArrayList<>();
+            if (lower != null) {
+                assertThat(lower.estimateSize() + upper.estimateSize()).isEqualTo(data.size());
+                lower.forEachRemaining(result::add);
+            }
+            upper.forEachRemaining(result::add);
+
+            if (data.size() >= 10_000) {
+                assertThat(lower).isNotNull();
+            }
+            assertThat(result).containsExactlyElementsOf(data.stream().sorted(comparator).collect(toList()));
+        }
+    }
+
+    @ParameterizedTest
+    @ArgumentsSource(TestData.RandomNumbers.class)
+    @ArgumentsSource(TestData.DuplicateNumbers.class)
+    void shouldProcessSortedStreamInParallel(List<Data> data) {
+
+        Comparator<Data> comparator = Comparator.comparing(Data::getId);
+
+        ExternalSortCollectors.Configuration<Data> configuration = ExternalSortCollectors.configuration(new DataSerializer())
+                .withComparator(comparator)
+                .withInternalSortMaxItems(100)
+                .withIndexInterval(16)
+                .build();
+
+        try (Stream<Data> sortedStream = data.stream().collect(ExternalSortCollectors.externalSort(configuration))) {
+            List<Data> result = sortedStream.parallel()
+                    .map(d -> new Data(d.getId(), d.getPayload()))
+                    .collect(toList());
+
+            assertThat(result).containsExactlyElementsOf(data.stream().sorted(comparator).collect(toList()));
+        }
+    }
+
+    @ParameterizedTest
+    @ArgumentsSource(TestData.RandomNumbers.class)
+    void shouldSortWithSpillFilesStripedAcrossDirectories(List<Data> data) throws IOException {
+
+        Comparator<Data> comparator = Comparator.comparing(Data::getId);
+
+        Path dir1 = Files.createTempDirectory("extsort_test_");
+        Path dir2 = Files.createTempDirectory("extsort_test_");
+        try {
+            ExternalSortCollectors.Configuration<Data> configuration = ExternalSortCollectors.configuration(new DataSerializer())
+                    .withComparator(comparator)
+                    .withInternalSortMaxItems(100)
+                    .withMaxRecordSize(50)
+                    .withWriteBufferSize(200)
+                    .withSpillStorage(ExternalSortCollectors.SpillStorage.striped(Arrays.asList(dir1, dir2)))
+                    .build();
+
+            sortAndCompare(data, configuration, true);
+        } finally {
+            Files.delete(dir1);
+            Files.delete(dir2);
+        }
+    }
+
+    /**
+     * A named configuration and whether the input stream is parallel. The builder is called for every test so that
+     * each one gets its own spill storage and can add options like {@code withDistinct()}.
+     */
+    private static class Variant {
+        final String name;
+        final Supplier<ExternalSortCollectors.ConfigurationBuilder<Data>> builder;
+        final boolean parallel;
+
+        Variant(String name, Supplier<ExternalSortCollectors.ConfigurationBuilder<Data>> builder, boolean parallel) {
+            this.name = name;
+            this.builder = builder;
+            this.parallel = parallel;
+        }
+
+        ExternalSortCollectors.Configuration<Data> configuration() {
+            return builder.get().build();
+        }
+
+        @Override
+        public String toString() {
+            return parallel ? name + " (parallel)" : name;
+        }
+    }
+
+    private static Stream<Variant> variants() {
+        return Stream.of(
+                sequential("in memory", () -> configuration(new DataSerializer())
+                        .withInternalSortMaxItems(20_000)),
+                sequential("merge passes", () -> configuration(new DataSerializer())
+                        .withInternalSortMaxItems(4)
+                        .withMaxMergeFanIn(3)
+                        .withMaxRecordSize(50)
+                        .withWriteBufferSize(100)
+                        .withMaxSegmentSize(200)),
+                sequential("stable merge passes", () -> configuration(new DataSerializer())
+                        .withInternalSortMaxItems(7)
+                        .withMaxMergeFanIn(5)),
+                sequential("index interval", () -> configuration(new DataSerializer())
+                        .withInternalSortMaxItems(100)
+                        .withMaxRecordSize(50)
+                        .withWriteBufferSize(200)
+                        .withIndexInterval(4)),
+                parallel("index interval and merge passes", () -> configuration(new DataKeySerializer(4))
+                        .withInternalSortMaxItems(50)
+                        .withMaxRecordSize(50)
+                        .withWriteBufferSize(200)
+                        .withMaxMergeFanIn(8)
+                        .withIndexInterval(8)),
+                sequential("pipelined sort", () -> configuration(new DataSerializer())
+                        .withInternalSortMaxItems(10)
+                        .withPipelinedSort(2)),
+                parallel("pipelined sort and merge passes", () -> configuration(new DataSerializer())
+                        .withInternalSortMaxItems(10)
+                        .withMaxMergeFanIn(4)
+                        .withPipelinedSort(2)),
+                sequential("memory budget", () -> configuration(new DataSerializer())
+                        .withMemoryBudget(2048)),
+                sequential("memory budget and exact size estimate", () -> configuration(new DataSerializer())
+                        .withMemoryBudget(2048)
+                        .withExactSizeEstimate()),
+                parallel("memory budget and size estimator", () -> configuration(new DataSerializer())
+                        .withInternalSortMaxItems(1000)
+                        .withMemoryBudget(4096)
+                        .withSizeEstimator(d -> 48 + 2 * d.getPayload().length())
+                        .withPipelinedSort(1)),
+                sequential("key prefix", () -> configuration(new DataKeySerializer(0))
+                        .withInternalSortMaxItems(100)
+                        .withMaxRecordSize(50)
+                        .withWriteBufferSize(100)),
+                sequential("partial key prefix and parallel sort", () -> configuration(new DataKeySerializer(2))
+                        .withParallelSort()),
+                parallel("partial key prefix, parallel sort and merge passes", () -> configuration(new DataKeySerializer(2))
+                        .withInternalSortMaxItems(1000)
+                        .withParallelSort()
+                        .withMaxMergeFanIn(4)),
+                sequential("off-heap buffer", () -> configuration(new DataKeySerializer(0))
+                        .withMaxRecordSize(50)
+                        .withWriteBufferSize(100)
+                        .withOffHeapBuffer(1000)),
+                sequential("off-heap buffer and partial key prefix", () -> configuration(new DataKeySerializer(2))
+                        .withMaxRecordSize(50)
+                        .withOffHeapBuffer(4096)),
+                parallel("pipelined off-heap buffer", () -> configuration(new DataKeySerializer(2))
+                        .withMaxRecordSize(50)
+                        .withOffHeapBuffer(2000)
+                        .withPipelinedSort(2)),
+                sequential("replacement selection", () -> configuration(new DataKeySerializer(4))
+                        .withInternalSortMaxItems(100)
+                        .withReplacementSelection()),
+                sequential("replacement selection and merge passes", () -> configuration(new DataSerializer())
+                        .withInternalSortMaxItems(7)
+                        .withMaxMergeFanIn(3)
+                        .withReplacementSelection()),
+                parallel("replacement selection and memory budget", () -> configuration(new DataSerializer())
+                        .withMemoryBudget(2000)
+                        .withReplacementSelection()),
+                sequential("lz compression", () -> configuration(new DataSerializer())
+                        .withInternalSortMaxItems(100)
+                        .withMaxRecordSize(50)
+                        .withWriteBufferSize(200)
+                        .withBlockCompression(ExternalSortCollectors.BlockCodec.lz())),
+                parallel("deflate compression and merge passes", () -> configuration(new DataKeySerializer(2))
+                        .withInternalSortMaxItems(50)
+                        .withMaxRecordSize(50)
+                        .withWriteBufferSize(200)
+                        .withMaxSegmentSize(400)
+                        .withMaxMergeFanIn(3)
+                        .withBlockCompression(ExternalSortCollectors.BlockCodec.deflate(6))),
+                sequential("buffered merge reads", () -> configuration(new DataKeySerializer(4))
+                        .withInternalSortMaxItems(100)
+                        .withMaxRecordSize(50)
+                        .withWriteBufferSize(200)
+                        .withMergeReadMode(ExternalSortCollectors.MergeReadMode.BUFFERED, 100)),
+                parallel("prefetched merge reads and merge passes", () -> configuration(new DataSerializer())
+                        .withInternalSortMaxItems(50)
+                        .withMaxRecordSize(50)
+                        .withWriteBufferSize(200)
+                        .withMaxMergeFanIn(4)
+                        .withMergeReadMode(ExternalSortCollectors.MergeReadMode.PREFETCH, 70)),
+                sequential("lz compression and prefetched merge reads", () -> configuration(new DataSerializer())
+                        .withInternalSortMaxItems(100)
+                        .withMaxRecordSize(50)
+                        .withWriteBufferSize(200)
+                        .withBlockCompression(ExternalSortCollectors.BlockCodec.lz())
+                        .withMergeReadMode(ExternalSortCollectors.MergeReadMode.PREFETCH, 100)),
+                sequential("striped in-memory spill storage", () -> configuration(new DataKeySerializer(4))
+                        .withInternalSortMaxItems(100)
+                        .withMaxRecordSize(50)
+                        .withWriteBufferSize(200)
+                        .withSpillStorage(ExternalSortCollectors.SpillStorage.inMemory(3))),
+                parallel("in-memory spill storage and merge passes", () -> configuration(new DataSerializer())
+                        .withInternalSortMaxItems(50)
+                        .withMaxRecordSize(50)
+                        .withWriteBufferSize(200)
+                        .withMaxMergeFanIn(4)
+                        .withSpillStorage(ExternalSortCollectors.SpillStorage.inMemory(2))));
+    }
+
+    private static Variant sequential(String name, Supplier<ExternalSortCollectors.ConfigurationBuilder<Data>> builder) {
+        return new Variant(name, builder, false);
+    }
+
+    private static Variant parallel(String name, Supplier<ExternalSortCollectors.ConfigurationBuilder<Data>> builder) {
+        return new Variant(name, builder, true);
+    }
+
+    private static ExternalSortCollectors.ConfigurationBuilder<Data> configuration(ExternalSortCollectors.Serializer<Data> serializer) {
+        return ExternalSortCollectors.configuration(serializer)
+                .withComparator(Comparator.comparing(Data::getId));
+    }
+
+    private static Stream<Arguments> configurations() {
+        return arguments(variants());
+    }
+
+    private static Stream<Arguments> distinctConfigurations() {
+        // distinct and reducers can not be combined with an off-heap buffer or replacement selection
+        return arguments(variants().filter(variant -> {
+            ExternalSortCollectors.Configuration<Data> configuration = variant.configuration();
+            return configuration.getOffHeapBufferSize() == 0 && !configuration.isReplacementSelection();
+        }));
+    }
+
+    private static Stream<Arguments> arguments(Stream<Variant> variants) {
+        List<Variant> list = variants.collect(toList());
+        return Stream.concat(TestData.randomNumbers(), TestData.duplicateNumbers())
+                .flatMap(data -> list.stream().map(variant -> Arguments.of(variant, data)));
+    }
+
+    private static <R> R collect(List<Data> data, boolean parallelStream, Collector<Data, ?, R> collector) {
+        Stream<Data> stream = data.stream();
+        if (parallelStream) {
+            stream = stream.parallel();
+        }
+        return stream.collect(collector);
+    }
+
+    private static void compare(Data[] externallySorted, List<Data> internallySorted, List<Data> data, boolean parallelStream) {
+        if (parallelStream) {
+            // the order of equal elements, and which of them are retained at a limit or by distinct, depends on how
+            // the stream was split, so the ids are compared in order and the elements have to be taken from the input
+            assertThat(Arrays.stream(externallySorted).mapToInt(Data::getId).toArray())
+                    .containsExactly(internallySorted.stream().mapToInt(Data::getId).toArray());
+            Map<Data, Integer> remaining = new HashMap<>();
+            data.forEach(d -> remaining.merge(d, 1, Integer::sum));
+            for (Data d : externallySorted) {
+                assertThat(remaining.merge(d, -1, Integer::sum)).as("occurrences of %s", d).isGreaterThanOrEqualTo(0);
+            }
+        } else {
+            assertThat(externallySorted).containsExactlyElementsOf(internallySorted);
+        }
+    }
+
+    /**
+     * Compares the whole result with {@code expected} and {@link ExternalSortCollectors.SortedResult#seekToRank(long)},
+     * {@code from} and {@code range} with the corresponding parts of the whole result.
+     */
+    private static void resultAndCompare(ExternalSortCollectors.SortedResult<Data> result, List<Data> expected, List<Data> data, Comparator<Data> comparator, boolean parallelStream) {
+        assertThat(result.size()).isEqualTo(expected.size());
+
+        Data[] all = toArray(result.stream(), parallelStream);
+        compare(all, expected, data, parallelStream);
+
+        List<Data> sorted = Arrays.asList(all);
+
+        int size = sorted.size();
+        for (long rank : new long[]{1, size / 2 + 1, Math.max(size - 1, 0), size + 5}) {
+            List<Data> expectedTail = sorted.subList((int) Math.min(rank, size), size);
+            assertThat(toArray(result.seekToRank(rank), parallelStream)).containsExactlyElementsOf(expectedTail);
+        }
+
+        int[][] ranges = {{0, 1}, {5, 6}, {30_000, 60_000}, {99_999, 200_000}, {60_000, 30_000}};
+        for (int[] range : ranges) {
+            Data from = new Data(range[0], "");
+            Data to = new Data(range[1], "");
+
+            List<Data> expectedFrom = sorted.stream()
+                    .filter(d -> comparator.compare(d, from) >= 0)
+                    .collect(toList());
+            List<Data> expectedRange = expectedFrom.stream()
+                    .filter(d -> comparator.compare(d, to) < 0)
+                    .collect(toList());
+
+            assertThat(toArray(result.from(from), parallelStream)).containsExactlyElementsOf(expectedFrom);
+            assertThat(toArray(result.range(from, to), parallelStream)).containsExactlyElementsOf(expectedRange);
+        }
+    }
+
+    private static Data[] toArray(Stream<Data> stream, boolean parallelStream) {
+        try (Stream<Data> s = parallelStream ? stream.parallel() : stream) {
+            return s.toArray(Data[]::new);
+        }
+    }
+
+    private void topKAndCompare(List<Data> data, ExternalSortCollectors.Configuration<Data> configuration, long limit, boolean parallelStream) {
+        try (Stream<Data> sortedStream = collect(data, parallelStream, ExternalSortCollectors.topK(configuration, limit))) {
+
+            Data[] externallySorted = sortedStream.toArray(Data[]::new);
+
+            List<Data> internallySorted = data.stream()
+                    .sorted(configuration.getComparator())
+                    .limit(limit)
+                    .collect(toList());
+
+            compare(externallySorted, internallySorted, data, parallelStream);
+        }
+    }
+
+    private void reduceAndCompare(List<Data> data, ExternalSortCollectors.Configuration<Data> configuration, boolean parallelStream) {
+        // sums the payloads of equal ids
+        BinaryOperator<Data> reducer = (a, b) -> new Data(a.getId(), String.valueOf(Long.parseLong(a.getPayload()) + Long.parseLong(b.getPayload())));
+        try (Stream<Data> sortedStream = collect(data, parallelStream, ExternalSortCollectors.externalSortReduce(configuration, reducer))) {
+
+            Data[] externallySorted = sortedStream.toArray(Data[]::new);
+
+            Data[] internallySorted = data.stream()
+                    .collect(groupingBy(Data::getId, TreeMap::new, reducing(reducer)))
+                    .values().stream()
+                    .map(Optional::get)
+                    .toArray(Data[]::new);
+
+            assertThat(externallySorted).containsExactly(internallySorted);
+        }
+    }
+
+    private static List<Data> distinct(List<Data> data, Comparator<Data> comparator) {
+        List<Data> result = new ArrayList<>();
+        data.stream().sorted(comparator).forEach(d -> {
+            if (result.isEmpty() || comparator.compare(result.get(result.size() - 1), d) != 0) {
+                result.add(d);
+            }
+        });
+        return result;
+    }
+
     private void sortAndCompare(List<Data> data, ExternalSortCollectors.Configuration<Data> configuration) {
         sortAndCompare(data, configuration, false);
     }
@@ -89,21 +505,13 @@ class RandomTest {
 
             Data[] externallySorted = sortedStream.toArray(Data[]::new);
 
-            Data[] internallySorted = data.stream()
+            List<Data> internallySorted = data.stream()
                     .sorted(configuration.getComparator())
-                    .toArray(Data[]::new);
+                    .collect(toList());
 
             //Assertions.assertArrayEquals(internallySorted, externallySorted);
-            assertThat(externallySorted).containsExactly(internallySorted);
+            compare(externallySorted, internallySorted, data, parallelStream);
         }
     }
 
-    private static Stream<List<Data>> randomNumbers() {
-        ThreadLocalRandom random = ThreadLocalRandom.current();
-        return IntStream.of(1, 2, 3, 5, 10, 20, 100, 101, 10_000)
-                .mapToObj(size -> random.ints(size, 1, 100_000)
-                        .mapToObj(i -> new Data(i, String.valueOf(i * 31)))
-                        .collect(toList()));
-    }
-
-}
\ No newline at end of file
+}
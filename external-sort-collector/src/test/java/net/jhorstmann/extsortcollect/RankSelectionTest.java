@@ -0,0 +1,110 @@
+package net.jhorstmann.extsortcollect;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RankSelectionTest {
+    private static final int INDEX_INTERVAL = 4;
+    private static final Comparator<Data> COMPARATOR = Comparator.comparing(Data::getId);
+
+    @ParameterizedTest
+    @MethodSource("runs")
+    void shouldPositionChunksCloseToRank(List<List<Data>> runs) throws IOException {
+        // the payload is the number of the chunk, equal ids of different chunks are merged in the order of the chunks
+        List<Data> expected = runs.stream().flatMap(List::stream).sorted(COMPARATOR).collect(toList());
+        int size = expected.size();
+
+        try (FileChannel file = new MemoryFileChannel()) {
+            List<Chunk> chunks = writeChunks(file, runs, null);
+            for (long rank : new long[]{0, 1, size / 3, size / 2 + 1, size - 1, size, size + 5}) {
+                List<ReadableChunk<Data>> readable = readableChunks(file, chunks, null);
+
+                long skipped = RankSelection.seek(readable, COMPARATOR, rank);
+
+                assertThat(skipped).isBetween(0L, Math.min(rank, size));
+                assertThat(Math.min(rank, size) - skipped).isLessThan((runs.size() + 1) * INDEX_INTERVAL);
+                assertThat(remaining(readable)).containsExactlyElementsOf(expected.subList((int) skipped, size));
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @MethodSource("runs")
+    void shouldNotDiscardRecordsOfCompressedChunks(List<List<Data>> runs) throws IOException {
+        List<Data> expected = runs.stream().flatMap(List::stream).sorted(COMPARATOR).collect(toList());
+
+        try (FileChannel file = new MemoryFileChannel()) {
+            ExternalSortCollectors.BlockCodec codec = ExternalSortCollectors.BlockCodec.lz();
+            List<ReadableChunk<Data>> readable = readableChunks(file, writeChunks(file, runs, codec), codec);
+
+            assertThat(RankSelection.seek(readable, COMPARATOR, expected.size() / 2)).isEqualTo(0);
+            assertThat(remaining(readable)).containsExactlyElementsOf(expected);
+        }
+    }
+
+    private static List<Chunk> writeChunks(FileChannel file, List<List<Data>> runs, ExternalSortCollectors.BlockCodec codec) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        try (ChunkWriter<Data> writer = new ChunkWriter<>(new DataSerializer(), null, 50, 200, 400, INDEX_INTERVAL, codec)) {
+            for (List<Data> run : runs) {
+                writer.start(file);
+                for (Data data : run) {
+                    writer.write(data);
+                }
+                chunks.add(writer.finish());
+            }
+        }
+        return chunks;
+    }
+
+    private static List<ReadableChunk<Data>> readableChunks(FileChannel file, List<Chunk> chunks, ExternalSortCollectors.BlockCodec codec) throws IOException {
+        List<ReadableChunk<Data>> result = new ArrayList<>();
+        for (int i = 0; i < chunks.size(); i++) {
+            Chunk chunk = chunks.get(i);
+            ByteBuffer[] segments = new ByteBuffer[chunk.getSegmentCount()];
+            for (int j = 0; j < segments.length; j++) {
+                segments[j] = ByteBuffer.allocate(Math.toIntExact(chunk.getSegmentLength(j)));
+                file.read(segments[j], chunk.getSegmentOffset(j));
+                segments[j].flip();
+            }
+            result.add(new ReadableChunk<>(new DataSerializer(), null, codec, COMPARATOR, chunk, segments, new Cleaner[segments.length], i));
+        }
+        return result;
+    }
+
+    /**
+     * Merges the records that were not discarded, ordering equal records by the position of their chunk.
+     */
+    private static List<Data> remaining(List<ReadableChunk<Data>> chunks) {
+        List<Data> result = new ArrayList<>();
+        for (ReadableChunk<Data> chunk : chunks) {
+            chunk.forEachRemaining(result::add);
+        }
+        result.sort(COMPARATOR);
+        return result;
+    }
+
+    private static Stream<List<List<Data>>> runs() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return IntStream.of(1, 2, 3, 5, 20).boxed()
+                .flatMap(k -> Stream.of(100_000, 10)
+                        .map(bound -> IntStream.range(0, k)
+                                .mapToObj(i -> random.ints(random.nextInt(i == 1 ? 0 : 1, 300), 1, bound)
+                                        .sorted()
+                                        .mapToObj(id -> new Data(id, String.valueOf(i)))
+                                        .collect(toList()))
+                                .collect(toList())));
+    }
+}
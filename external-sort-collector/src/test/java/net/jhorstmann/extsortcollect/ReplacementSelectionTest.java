@@ -0,0 +1,80 @@
+package net.jhorstmann.extsortcollect;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ReplacementSelectionTest {
+
+    @Test
+    void shouldProduceRunsOfAboutTwiceTheHeapSizeOnRandomInput() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int capacity = 1000;
+        int count = 100_000;
+        ReplacementSelection<Integer> selection = new ReplacementSelection<>(Comparator.<Integer>naturalOrder(), capacity, 0, null);
+
+        List<Integer> runLengths = new ArrayList<>();
+        int previous = Integer.MIN_VALUE;
+        int run = 0;
+        int length = 0;
+        for (int i = 0; i < count + capacity; i++) {
+            if (selection.isFull() || i >= count) {
+                int value = selection.poll();
+                if (selection.getRun() != run) {
+                    runLengths.add(length);
+                    run = selection.getRun();
+                    length = 0;
+                } else {
+                    assertThat(value).isGreaterThanOrEqualTo(previous);
+                }
+                previous = value;
+                length++;
+            }
+            if (i < count) {
+                selection.add(random.nextInt());
+            }
+        }
+        runLengths.add(length);
+
+        assertThat(selection.isEmpty()).isTrue();
+        assertThat(runLengths.stream().mapToInt(Integer::intValue).sum()).isEqualTo(count);
+        // the last run is shorter, all others should be close to twice the capacity
+        double average = runLengths.subList(0, runLengths.size() - 1).stream().mapToInt(Integer::intValue).average().orElse(0);
+        assertThat(average).isBetween(1.7 * capacity, 2.3 * capacity);
+    }
+
+    @Test
+    void shouldProduceASingleRunOnSortedInput() {
+        ReplacementSelection<Integer> selection = new ReplacementSelection<>(Comparator.<Integer>naturalOrder(), 10, 0, null);
+        for (int i = 0; i < 1000; i++) {
+            if (selection.isFull()) {
+                assertThat(selection.poll()).isEqualTo(i - 10);
+                assertThat(selection.getRun()).isEqualTo(0);
+            }
+            selection.add(i);
+        }
+    }
+
+    @Test
+    void shouldEstimateEachElementOnce() {
+        AtomicInteger estimates = new AtomicInteger();
+        ReplacementSelection<Integer> selection = new ReplacementSelection<>(Comparator.<Integer>naturalOrder(), 1000, 100, elem -> {
+            estimates.incrementAndGet();
+            return 10;
+        });
+        for (int i = 0; i < 1000; i++) {
+            if (selection.isFull()) {
+                selection.poll();
+                assertThat(selection.size()).isEqualTo(9);
+            }
+            selection.add(i);
+        }
+        assertThat(estimates.get()).isEqualTo(1000);
+    }
+}
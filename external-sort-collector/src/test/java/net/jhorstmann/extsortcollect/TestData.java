@@ -0,0 +1,58 @@
+package net.jhorstmann.extsortcollect;
+
+import org.junit.jupiter.api.extension.ExtensionContext;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.ArgumentsProvider;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Data sets shared by the parameterized tests, used as {@code @ArgumentsSource(TestData.RandomNumbers.class)}.
+ */
+class TestData {
+    private static final int[] SIZES = {0, 1, 2, 3, 5, 10, 20, 100, 101, 10_000};
+
+    private TestData() {
+    }
+
+    /**
+     * Random ids, which are mostly unique, with a payload derived from the id.
+     */
+    static Stream<List<Data>> randomNumbers() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return IntStream.of(SIZES)
+                .mapToObj(size -> random.ints(size, 1, 100_000)
+                        .mapToObj(i -> new Data(i, String.valueOf(i * 31)))
+                        .collect(toList()));
+    }
+
+    /**
+     * Few distinct ids, the payload is the position in the input so that the order of equal ids can be checked.
+     */
+    static Stream<List<Data>> duplicateNumbers() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return IntStream.of(SIZES)
+                .mapToObj(size -> IntStream.rangeClosed(1, size)
+                        .mapToObj(i -> new Data(random.nextInt(1, 10), String.valueOf(i)))
+                        .collect(toList()));
+    }
+
+    static class RandomNumbers implements ArgumentsProvider {
+        @Override
+        public Stream<? extends Arguments> provideArguments(ExtensionContext context) {
+            return randomNumbers().map(Arguments::of);
+        }
+    }
+
+    static class DuplicateNumbers implements ArgumentsProvider {
+        @Override
+        public Stream<? extends Arguments> provideArguments(ExtensionContext context) {
+            return duplicateNumbers().map(Arguments::of);
+        }
+    }
+}